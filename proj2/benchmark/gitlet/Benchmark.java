@@ -0,0 +1,1193 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Formatter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/** A benchmark class, built by make benchmark (it is not part of gitlet.jar),
+ *  whose main program may be invoked with -cp classes:benchmark-classes as follows:
+ *      java gitlet.Benchmark objects [COMMITS] [FILES]
+ *      java gitlet.Benchmark history [COMMITS]
+ *      java gitlet.Benchmark mergebase [COMMITS] [BRANCHES]
+ *      java gitlet.Benchmark gc [VERSIONS]
+ *      java gitlet.Benchmark abbrev [OBJECTS]
+ *      java gitlet.Benchmark chunks [VERSIONS]
+ *      java gitlet.Benchmark worktree [FILES]
+ *      java gitlet.Benchmark checkout [FILES]
+ *      java gitlet.Benchmark startup [RUNS]
+ *      java gitlet.Benchmark cache [FILES]
+ *      java gitlet.Benchmark refs [BRANCHES]
+ *      java gitlet.Benchmark find [COMMITS]
+ *      java gitlet.Benchmark hash [FILES]
+ *      java gitlet.Benchmark index [FILES]
+ *      java gitlet.Benchmark add [FILES]
+ *      java gitlet.Benchmark diff [FILES]
+ *      java gitlet.Benchmark linemerge [LINES]
+ *  It works in a temporary repository, which is deleted at the end,
+ *  and prints the time taken by each step.
+ *
+ *  objects: reads and writes commits, trees and blobs (what log, status
+ *           and checkout do) with Java serialization and with the
+ *           object format of ObjectStore.
+ *  history: walks the first parents of a linear history (what log does)
+ *           by reading the commits and with the commit graph.
+ *  mergebase: finds the split points of random commits of a history with
+ *           many branches and merges, comparing with the first parent lists.
+ *  gc: packs VERSIONS versions of a 1 MB file, and reads them from their
+ *           object files and from the pack.
+ *  abbrev: finds commits by the prefix of their sha1 among OBJECTS objects
+ *           with the object index, and by listing the object files.
+ *  chunks: writes VERSIONS versions of a 16 MB binary file, each with a
+ *           few bytes inserted, and compares the size of the chunks with
+ *           the size of the whole (compressed) blobs.
+ *  worktree: lists and hashes FILES files in nested directories (what status
+ *           and add do) on one thread, and on gitlet.parallelism threads.
+ *  checkout: writes the blobs of FILES files (half of them text, half of them
+ *           random bytes which do not compress) to the working directory, one
+ *           at a time by reading them whole, and several at a time by streaming
+ *           or transferring them.
+ *  startup: runs each command RUNS times in a new JVM (what a user does), and
+ *           reports the wall time per command. With -Dgitlet.cds=DIR (the
+ *           directory of gitlet.jar and gitlet.jsa, see make cds) the commands
+ *           are also run with the class data sharing archive.
+ *  cache: reads the trees of three commits of FILES files and the blobs of the
+ *           files changed by two of them (what merge reads) 100 times, with
+ *           the object cache cleared before each time (a command per process)
+ *           and kept (a daemon), and prints the hits and misses.
+ *  refs: lists BRANCHES branches (what status does) and resolves 1000 of
+ *           them, as loose refs and after pack-refs.
+ *  find: finds the commits of a message among COMMITS commits, exactly, by prefix
+ *           and by substring, by reading logs/HEAD and with the message index
+ *           (the candidates are counted, not checked against their commits).
+ *  hash: hashes FILES small contents (what add does for small files) with a
+ *           MessageDigest got for each one and formatted with "%02x" (what
+ *           Utils.sha1 did), and with Utils.sha1, 5 times after a warm up.
+ *  index: stages a file 100 times (what add does) in an index caching the stat
+ *           of FILES files, written whole by Java serialization and appended
+ *           to the journal of the index file (which is synced).
+ *  add: persists the blobs of FILES new small files (what add does for a new
+ *           directory), to an object file each and to one pack.
+ *  diff: finds the 10 files changed between two trees of FILES files in
+ *           directories of 100 (what merge and diff do), by comparing the maps
+ *           of all their files and with Tree.diff, the trees read from disk.
+ *  linemerge: merges by lines a file of LINES lines changed by both branches
+ *           in 100 places each (what merge does for a file changed in both),
+ *           and counts the conflicts.
+ */
+public class Benchmark {
+
+    public static void main(String... args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: java gitlet.Benchmark objects [COMMITS] [FILES]");
+            System.out.println("       java gitlet.Benchmark history [COMMITS]");
+            System.out.println("       java gitlet.Benchmark mergebase [COMMITS] [BRANCHES]");
+            System.out.println("       java gitlet.Benchmark gc [VERSIONS]");
+            System.out.println("       java gitlet.Benchmark abbrev [OBJECTS]");
+            System.out.println("       java gitlet.Benchmark chunks [VERSIONS]");
+            System.out.println("       java gitlet.Benchmark worktree [FILES]");
+            System.out.println("       java gitlet.Benchmark checkout [FILES]");
+            System.out.println("       java gitlet.Benchmark startup [RUNS]");
+            System.out.println("       java gitlet.Benchmark cache [FILES]");
+            System.out.println("       java gitlet.Benchmark refs [BRANCHES]");
+            System.out.println("       java gitlet.Benchmark find [COMMITS]");
+            System.out.println("       java gitlet.Benchmark hash [FILES]");
+            System.out.println("       java gitlet.Benchmark index [FILES]");
+            System.out.println("       java gitlet.Benchmark add [FILES]");
+            System.out.println("       java gitlet.Benchmark diff [FILES]");
+            System.out.println("       java gitlet.Benchmark linemerge [LINES]");
+            return;
+        }
+        File dir = Files.createTempDirectory("gitlet-bench").toFile();
+        // Repository resolves all its paths from user.dir when it is loaded
+        System.setProperty("user.dir", dir.getAbsolutePath());
+        try {
+            Repository.OBJECT_DIR.mkdirs();
+            switch (args[0]) {
+                case "objects":
+                    benchObjects(intArg(args, 1, 1000), intArg(args, 2, 1000));
+                    break;
+                case "history":
+                    benchHistory(intArg(args, 1, 100000));
+                    break;
+                case "mergebase":
+                    benchMergeBase(intArg(args, 1, 100000), intArg(args, 2, 20));
+                    break;
+                case "gc":
+                    benchGc(intArg(args, 1, 100));
+                    break;
+                case "abbrev":
+                    benchAbbrev(intArg(args, 1, 1000000));
+                    break;
+                case "chunks":
+                    benchChunks(intArg(args, 1, 20));
+                    break;
+                case "worktree":
+                    benchWorkTree(intArg(args, 1, 20000));
+                    break;
+                case "checkout":
+                    benchCheckout(intArg(args, 1, 10000));
+                    break;
+                case "startup":
+                    benchStartup(intArg(args, 1, 10));
+                    break;
+                case "cache":
+                    benchCache(intArg(args, 1, 10000));
+                    break;
+                case "refs":
+                    benchRefs(intArg(args, 1, 50000));
+                    break;
+                case "find":
+                    benchFind(intArg(args, 1, 100000));
+                    break;
+                case "hash":
+                    benchHash(intArg(args, 1, 100000));
+                    break;
+                case "index":
+                    benchIndex(intArg(args, 1, 100000));
+                    break;
+                case "add":
+                    benchAdd(intArg(args, 1, 50000));
+                    break;
+                case "diff":
+                    benchDiff(intArg(args, 1, 1000000));
+                    break;
+                case "linemerge":
+                    benchLineMerge(intArg(args, 1, 100000));
+                    break;
+                default:
+                    System.out.println("No benchmark with that name exists");
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static int intArg(String[] args, int i, int defaultValue) {
+        return args.length > i ? Integer.parseInt(args[i]) : defaultValue;
+    }
+
+    /**
+     * COMMITS commits whose trees have FILES files, and a blob of 1 MB
+     */
+    private static void benchObjects(int commits, int files) throws IOException {
+        Random random = new Random(61);
+        List<Commit> history = new ArrayList<>();
+        Tree tree = new Tree();
+        List<String> parents = null;
+        for (int i = 0; i < commits; i++) {
+            tree = new Tree(tree);
+            for (int j = 0; j < Math.max(1, files / commits); j++) {
+                tree.addFile("dir" + random.nextInt(100) + "/file" + random.nextInt(files),
+                        Utils.sha1("" + random.nextLong()));
+            }
+            Commit commit = new Commit(LocalDateTime.now(), "commit " + i, parents, tree);
+            history.add(commit);
+            parents = List.of(commit.getSha1());
+        }
+        File legacyDir = Utils.join(Repository.OBJECT_DIR, "legacy");
+        legacyDir.mkdir();
+        System.out.printf("%-42s %13s %13s %7s%n", "", "serialization", "object format", "speedup");
+
+        long start = System.nanoTime();
+        for (Commit commit : history) {
+            Utils.writeObject(new File(legacyDir, commit.getSha1()), legacyCommit(commit));
+        }
+        long legacyWrite = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (Commit commit : history) {
+            ObjectStore.write(commit.getTree());
+            ObjectStore.write(commit);
+        }
+        long write = System.nanoTime() - start;
+        report("write commits", legacyWrite, write);
+
+        start = System.nanoTime();
+        for (Commit commit : history) {
+            Utils.readObject(new File(legacyDir, commit.getSha1()), Object[].class);
+        }
+        long legacyRead = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (Commit commit : history) {
+            ObjectStore.readCommit(commit.getSha1());
+        }
+        long read = System.nanoTime() - start;
+        report("read commits (log)", legacyRead, read);
+
+        Commit head = history.get(history.size() - 1);
+        start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            Utils.readObject(new File(legacyDir, head.getSha1()), Object[].class);
+        }
+        legacyRead = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            // each status is a new process, which reads the objects again
+            ObjectStore.clearCache();
+            ObjectStore.readCommit(head.getSha1()).getTreeFiles();
+        }
+        read = System.nanoTime() - start;
+        report("read head tree x100 (status)", legacyRead, read);
+        System.out.printf("commits and trees: %d KB, %d KB with flat trees embedded in the commits%n",
+                size(Repository.OBJECT_DIR) / 1024 - size(legacyDir) / 1024, size(legacyDir) / 1024);
+
+        File content = new File(legacyDir, "content");
+        byte[] bytes = new byte[1 << 20];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) ('a' + random.nextInt(16));
+        }
+        Utils.writeContents(content, bytes);
+        String blobSha1 = ObjectStore.writeBlob(content);
+        File target = new File(legacyDir, "target");
+        start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            Utils.writeContents(target, Utils.readContents(content));
+        }
+        long rawCopy = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            ObjectStore.copyBlob(blobSha1, target);
+        }
+        read = System.nanoTime() - start;
+        report("checkout 1 MB blob x100 (vs plain copy)", rawCopy, read);
+        System.out.printf("blob object: %d bytes for %d bytes of content%n",
+                ObjectStore.objectFile(blobSha1).length(), bytes.length);
+    }
+
+    /**
+     * a linear history of COMMITS commits with the same tree
+     */
+    private static void benchHistory(int commits) {
+        Tree tree = new Tree();
+        tree.addFile("file", Utils.sha1("file"));
+        ObjectStore.write(tree);
+        CommitGraph graph = CommitGraph.open(Repository.COMMIT_GRAPH);
+        LocalDateTime time = LocalDateTime.now();
+        List<String> parents = null;
+        long start = System.nanoTime();
+        for (int i = 0; i < commits; i++) {
+            Commit commit = new Commit(time.plusSeconds(i), "commit " + i, parents, tree);
+            ObjectStore.write(commit);
+            graph.add(commit);
+            parents = List.of(commit.getSha1());
+        }
+        System.out.printf("%d commits written in %.1f ms%n", commits, (System.nanoTime() - start) / 1e6);
+        String head = parents.get(0);
+        System.out.printf("%-42s %13s %13s %7s%n", "", "commits", "commit graph", "speedup");
+
+        start = System.nanoTime();
+        int count = 0;
+        Commit commit = ObjectStore.readCommit(head);
+        while (commit.getParentCommitID() != null) {
+            commit = ObjectStore.readCommit(commit.getParentCommitID().get(0));
+            count++;
+        }
+        long objects = System.nanoTime() - start;
+        start = System.nanoTime();
+        // a new process opens the graph and finds the head
+        graph = CommitGraph.open(Repository.COMMIT_GRAPH);
+        for (int position = graph.position(head); graph.getParent(position, 0) != CommitGraph.NONE;
+             position = graph.getParent(position, 0)) {
+            graph.getSha1(position);
+            count--;
+        }
+        long walk = System.nanoTime() - start;
+        if (count != 0) {
+            throw new IllegalStateException("the walks did not see the same commits");
+        }
+        report("walk the first parents", objects, walk);
+    }
+
+    /**
+     * COMMITS commits on BRANCHES branches, a tenth of them merge another branch.
+     * Only the commit graph is written.
+     */
+    private static void benchMergeBase(int commits, int branches) {
+        Random random = new Random(61);
+        Tree tree = new Tree();
+        CommitGraph graph = CommitGraph.open(Repository.COMMIT_GRAPH);
+        LocalDateTime time = LocalDateTime.now();
+        Commit initial = new Commit(time, "initial commit", null, tree);
+        graph.add(initial);
+        String[] heads = new String[branches];
+        Arrays.fill(heads, initial.getSha1());
+        for (int i = 0; i < commits; i++) {
+            int branch = random.nextInt(branches);
+            List<String> parents = List.of(heads[branch]);
+            if (random.nextInt(10) == 0) {
+                parents = List.of(heads[branch], heads[random.nextInt(branches)]);
+            }
+            Commit commit = new Commit(time.plusSeconds(i), "commit " + i, parents, tree);
+            graph.add(commit);
+            heads[branch] = commit.getSha1();
+        }
+
+        System.out.printf("%d commits, 1000 split points%n", graph.size());
+        System.out.printf("%-42s %13s %13s %7s%n", "", "first parents", "merge base", "speedup");
+        int[][] queries = new int[1000][];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = new int[]{graph.find(heads[random.nextInt(branches)]),
+                graph.find(heads[random.nextInt(branches)])};
+        }
+        benchSplitPoints(graph, "merge two branches", queries);
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = new int[]{graph.find(heads[random.nextInt(branches)]), random.nextInt(graph.size())};
+        }
+        // the walk goes down to the generation of the older commit
+        benchSplitPoints(graph, "merge a branch and an older commit", queries);
+    }
+
+    private static void benchSplitPoints(CommitGraph graph, String name, int[][] queries) {
+        long start = System.nanoTime();
+        int[] bases = new int[queries.length];
+        for (int i = 0; i < queries.length; i++) {
+            bases[i] = graph.mergeBase(queries[i][0], queries[i][1]);
+        }
+        long mergeBase = System.nanoTime() - start;
+        start = System.nanoTime();
+        int differ = 0;
+        for (int i = 0; i < queries.length; i++) {
+            if (firstParentSplitPoint(graph, queries[i][0], queries[i][1]) != bases[i]) {
+                differ++;
+            }
+        }
+        long firstParents = System.nanoTime() - start;
+        for (int i = 0; i < 20; i++) {
+            if (bestCommonAncestor(graph, queries[i][0], queries[i][1]) != bases[i]) {
+                throw new IllegalStateException("wrong merge base");
+            }
+        }
+        report(name, firstParents, mergeBase);
+        System.out.printf("  the first parent lists found another split point for %d of them%n", differ);
+    }
+
+    /**
+     * VERSIONS commits, each changing a few lines of a 1 MB file
+     */
+    private static void benchGc(int versions) throws IOException {
+        Random random = new Random(61);
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            content.append("line ").append(i).append(' ').append(random.nextLong()).append('\n');
+        }
+        File file = new File(Repository.CWD, "file");
+        List<String> commits = new ArrayList<>();
+        List<String> blobs = new ArrayList<>();
+        List<String> parents = null;
+        for (int i = 0; i < versions; i++) {
+            int line = content.indexOf("line " + random.nextInt(20000) + " ");
+            content.insert(line, "changed " + i + " ");
+            Utils.writeContents(file, content.toString());
+            String blob = ObjectStore.writeBlob(file);
+            Tree tree = new Tree();
+            tree.addFile("file", blob);
+            Commit commit = new Commit(LocalDateTime.now().plusSeconds(i), "version " + i, parents, tree);
+            ObjectStore.write(tree);
+            ObjectStore.write(commit);
+            blobs.add(blob);
+            commits.add(0, commit.getSha1());
+            parents = List.of(commit.getSha1());
+        }
+        long looseSize = size(Repository.OBJECT_DIR);
+        ObjectStore.clearCache();
+        long start = System.nanoTime();
+        for (String blob : blobs) {
+            ObjectStore.readBlob(blob);
+        }
+        long looseRead = System.nanoTime() - start;
+        start = System.nanoTime();
+        int[] count = ObjectStore.gc(commits);
+        long gc = System.nanoTime() - start;
+        ObjectStore.clearCache();
+        start = System.nanoTime();
+        for (String blob : blobs) {
+            ObjectStore.readBlob(blob);
+        }
+        long packRead = System.nanoTime() - start;
+        System.out.printf("gc: %d objects packed, %d as deltas, in %.1f ms%n", count[0], count[1], gc / 1e6);
+        System.out.printf("objects: %d KB in object files, %d KB in the pack%n",
+                looseSize / 1024, size(ObjectStore.PACK_DIR) / 1024);
+        System.out.printf("%-42s %13s %13s %7s%n", "", "object files", "pack", "speedup");
+        report("read all the versions", looseRead, packRead);
+    }
+
+    /**
+     * VERSIONS versions of a 16 MB file of random bytes, each inserting 100 bytes at a random position,
+     * written as chunks. The whole blobs are only compressed, to know the size of their object files.
+     */
+    private static void benchChunks(int versions) throws IOException {
+        Random random = new Random(61);
+        byte[] content = new byte[16 << 20];
+        random.nextBytes(content);
+        File file = new File(Repository.CWD, "file");
+        List<String> blobs = new ArrayList<>();
+        long wholeSize = 0;
+        long write = 0;
+        for (int i = 0; i < versions; i++) {
+            int position = random.nextInt(content.length);
+            byte[] inserted = new byte[100];
+            random.nextBytes(inserted);
+            byte[] next = new byte[content.length + inserted.length];
+            System.arraycopy(content, 0, next, 0, position);
+            System.arraycopy(inserted, 0, next, position, inserted.length);
+            System.arraycopy(content, position, next, position + inserted.length, content.length - position);
+            content = next;
+            Utils.writeContents(file, content);
+            wholeSize += ObjectStore.HEADER_LENGTH + deflatedSize(content);
+            long start = System.nanoTime();
+            blobs.add(ObjectStore.writeBlob(file));
+            write += System.nanoTime() - start;
+        }
+        long start = System.nanoTime();
+        for (String blob : blobs) {
+            ObjectStore.copyBlob(blob, file);
+        }
+        long read = System.nanoTime() - start;
+        System.out.printf("%d versions of %d MB: %d KB of whole blobs, %d KB of chunks%n",
+                versions, content.length >> 20, wholeSize / 1024, size(Repository.OBJECT_DIR) / 1024);
+        System.out.printf("written in %.1f ms, read in %.1f ms%n", write / 1e6, read / 1e6);
+    }
+
+    /**
+     * FILES files of 16 KB, 100 per directory, in directories of 10 subdirectories
+     */
+    private static void benchWorkTree(int files) {
+        Random random = new Random(61);
+        byte[] content = new byte[16 * 1024];
+        for (int i = 0; i < files; i++) {
+            int dir = i / 100;
+            File file = Utils.join(Repository.CWD, "d" + dir / 100, "d" + dir / 10 % 10, "d" + dir % 10, "f" + i);
+            file.getParentFile().mkdirs();
+            random.nextBytes(content);
+            Utils.writeContents(file, content);
+        }
+        long start = System.nanoTime();
+        List<String> sequentialFiles = new ArrayList<>();
+        listSequentially(Repository.CWD, "", sequentialFiles);
+        Collections.sort(sequentialFiles);
+        long sequentialList = System.nanoTime() - start;
+        start = System.nanoTime();
+        Map<String, String> sequentialSha1s = new HashMap<>();
+        for (String file : sequentialFiles) {
+            sequentialSha1s.put(file, Blob.hashFile(Utils.join(Repository.CWD, file)));
+        }
+        long sequentialHash = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        List<String> parallelFiles = WorkingTree.listFiles(Repository.CWD, "");
+        long parallelList = System.nanoTime() - start;
+        start = System.nanoTime();
+        Map<String, String> parallelSha1s = WorkingTree.map(parallelFiles,
+                file -> Blob.hashFile(Utils.join(Repository.CWD, file)));
+        long parallelHash = System.nanoTime() - start;
+        if (!sequentialFiles.equals(parallelFiles) || !sequentialSha1s.equals(parallelSha1s)) {
+            throw new IllegalStateException("the parallel walk found other files");
+        }
+        System.out.printf("%d files, %d threads%n", parallelFiles.size(), WorkingTree.PARALLELISM);
+        System.out.printf("%-42s %13s %13s %7s%n", "", "1 thread", "fork-join", "speedup");
+        report("list the files", sequentialList, parallelList);
+        report("hash the files", sequentialHash, parallelHash);
+    }
+
+    /**
+     * FILES files of 32 KB, 100 per directory
+     */
+    private static void benchCheckout(int files) {
+        Random random = new Random(61);
+        Map<String, String> blobs = new HashMap<>();
+        File source = new File(Repository.CWD, "source");
+        byte[] content = new byte[32 * 1024];
+        for (int i = 0; i < files; i++) {
+            if (i % 2 == 0) {
+                random.nextBytes(content);
+            } else {
+                for (int j = 0; j < content.length; j++) {
+                    content[j] = (byte) ('a' + random.nextInt(4));
+                }
+            }
+            Utils.writeContents(source, content);
+            blobs.put("d" + i / 100 + File.separator + "f" + i, ObjectStore.writeBlob(source));
+        }
+        File sequentialDir = new File(Repository.CWD, "sequential");
+        long start = System.nanoTime();
+        for (Map.Entry<String, String> entry : blobs.entrySet()) {
+            File file = Utils.join(sequentialDir, entry.getKey());
+            file.getParentFile().mkdirs();
+            Utils.writeContents(file, ObjectStore.readBlob(entry.getValue()));
+        }
+        long sequential = System.nanoTime() - start;
+
+        File parallelDir = new File(Repository.CWD, "parallel");
+        start = System.nanoTime();
+        for (int i = 0; i < files; i += 100) {
+            Utils.join(parallelDir, "d" + i / 100).mkdirs();
+        }
+        WorkingTree.map(blobs.keySet(), file -> {
+            ObjectStore.copyBlob(blobs.get(file), Utils.join(parallelDir, file));
+            return null;
+        });
+        long parallel = System.nanoTime() - start;
+        System.out.printf("%d files, %d threads%n", files, WorkingTree.PARALLELISM);
+        System.out.printf("%-42s %13s %13s %7s%n", "", "one at a time", "parallel", "speedup");
+        report("write the files", sequential, parallel);
+    }
+
+    /**
+     * a split point with FILES files in directories of 100 files, and two commits changing
+     * a tenth of the files each, the same files in half of the directories
+     */
+    private static void benchCache(int files) throws IOException {
+        Random random = new Random(61);
+        File source = new File(Repository.CWD, "source");
+        Tree split = new Tree();
+        for (int i = 0; i < files; i++) {
+            Utils.writeContents(source, "file " + i + " " + random.nextLong() + "\n");
+            split.addFile("d" + i / 100 + File.separator + "f" + i, ObjectStore.writeBlob(source));
+        }
+        Tree head = new Tree(split);
+        Tree other = new Tree(split);
+        List<String> changed = new ArrayList<>();
+        for (int i = 0; i < files; i += 10) {
+            String path = "d" + i / 100 + File.separator + "f" + i;
+            Utils.writeContents(source, "head " + i + "\n");
+            head.addFile(path, ObjectStore.writeBlob(source));
+            if (i / 100 % 2 == 0) {
+                Utils.writeContents(source, "other " + i + "\n");
+                other.addFile(path, ObjectStore.writeBlob(source));
+            }
+            changed.add(path);
+        }
+        LocalDateTime time = LocalDateTime.now();
+        Commit splitCommit = new Commit(time, "split", null, split);
+        Commit headCommit = new Commit(time.plusSeconds(1), "head", List.of(splitCommit.getSha1()), head);
+        Commit otherCommit = new Commit(time.plusSeconds(2), "other", List.of(splitCommit.getSha1()), other);
+        for (Commit commit : List.of(splitCommit, headCommit, otherCommit)) {
+            ObjectStore.writeTree(commit.getTree());
+            ObjectStore.write(commit);
+        }
+        List<String> commits = List.of(splitCommit.getSha1(), headCommit.getSha1(), otherCommit.getSha1());
+        System.out.printf("%d files, %d changed%n", files, changed.size());
+        System.out.printf("%-42s %13s %13s %7s%n", "", "cleared", "kept", "speedup");
+
+        ObjectStore.clearCache();
+        long start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            ObjectStore.clearCache();
+            readMergeObjects(commits, changed);
+        }
+        long cleared = System.nanoTime() - start;
+        ObjectStore.clearCache();
+        long hits = ObjectStore.TREES.getHits() + ObjectStore.BLOBS.getHits();
+        long misses = ObjectStore.TREES.getMisses() + ObjectStore.BLOBS.getMisses();
+        start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            readMergeObjects(commits, changed);
+        }
+        long kept = System.nanoTime() - start;
+        report("read the objects of a merge x100", cleared, kept);
+        System.out.printf("kept: %d hits, %d misses of trees and blobs%n",
+                ObjectStore.TREES.getHits() + ObjectStore.BLOBS.getHits() - hits,
+                ObjectStore.TREES.getMisses() + ObjectStore.BLOBS.getMisses() - misses);
+        System.out.println(ObjectStore.COMMITS.statistics());
+        System.out.println(ObjectStore.TREES.statistics());
+        System.out.println(ObjectStore.BLOBS.statistics());
+    }
+
+    private static void benchHash(int files) {
+        Random random = new Random(67);
+        byte[][] contents = new byte[files][];
+        for (int i = 0; i < files; i++) {
+            contents[i] = ("file " + i + " " + random.nextLong() + "\n").repeat(1 + random.nextInt(8))
+                    .getBytes(StandardCharsets.UTF_8);
+        }
+        System.out.printf("%d files%n", files);
+        System.out.printf("%-42s %13s %13s %7s%n", "", "legacy", "Utils.sha1", "speedup");
+        for (int i = 0; i < contents.length; i++) {
+            if (!legacySha1("blob " + contents[i].length + "\0", contents[i])
+                    .equals(Utils.sha1("blob " + contents[i].length + "\0", contents[i]))) {
+                throw new IllegalStateException("the sha1s differ");
+            }
+        }
+        long start = System.nanoTime();
+        for (int round = 0; round < 5; round++) {
+            for (byte[] content : contents) {
+                legacySha1("blob " + content.length + "\0", content);
+            }
+        }
+        long legacy = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int round = 0; round < 5; round++) {
+            for (byte[] content : contents) {
+                Utils.sha1("blob " + content.length + "\0", content);
+            }
+        }
+        long current = System.nanoTime() - start;
+        report("hash the blobs x5", legacy, current);
+    }
+
+    private static void benchIndex(int files) {
+        Random random = new Random(71);
+        File source = new File(Repository.CWD, "source");
+        Utils.writeContents(source, "source\n");
+        FileStat stat = FileStat.of(source);
+        Index index = Index.read(Repository.INDEX_FILE);
+        for (int i = 0; i < files; i++) {
+            index.cacheSha1("d" + i / 100 + File.separator + "f" + i, stat, Utils.sha1("" + random.nextLong()), 0);
+        }
+        index.write();
+        File legacyFile = new File(Repository.CWD, "legacy-index");
+        Utils.writeObject(legacyFile, index);
+        System.out.printf("%d files, index of %d KB, serialized %d KB%n", files,
+                Repository.INDEX_FILE.length() / 1024, legacyFile.length() / 1024);
+        System.out.printf("%-42s %13s %13s %7s%n", "", "serialized", "journal", "speedup");
+
+        long legacyWrite = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            Index legacy = Utils.readObject(legacyFile, Index.class);
+            legacy.addFileForAddition("staged" + i, Utils.sha1("staged" + i));
+            long writeStart = System.nanoTime();
+            Utils.writeObject(legacyFile, legacy);
+            legacyWrite += System.nanoTime() - writeStart;
+        }
+        long legacyTotal = System.nanoTime() - start;
+        long journalWrite = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            Index current = Index.read(Repository.INDEX_FILE);
+            current.addFileForAddition("staged" + i, Utils.sha1("staged" + i));
+            long writeStart = System.nanoTime();
+            current.write();
+            journalWrite += System.nanoTime() - writeStart;
+        }
+        long journalTotal = System.nanoTime() - start;
+        report("write the index after staging x100", legacyWrite, journalWrite);
+        report("read, stage a file and write x100", legacyTotal, journalTotal);
+        if (Index.read(Repository.INDEX_FILE).getStagedFilesForAddition().size() != 100) {
+            throw new IllegalStateException("the staged files were not all read back");
+        }
+    }
+
+    private static void benchAdd(int files) {
+        Random random = new Random(73);
+        List<File> loose = new ArrayList<>();
+        List<File> bulk = new ArrayList<>();
+        for (int i = 0; i < files; i++) {
+            File dir = new File(Repository.CWD, "d" + i / 1000);
+            dir.mkdirs();
+            // different contents, so that the second way writes all its blobs too
+            loose.add(new File(dir, "loose" + i));
+            Utils.writeContents(loose.get(i), "loose " + i + " " + random.nextLong() + "\n");
+            bulk.add(new File(dir, "bulk" + i));
+            Utils.writeContents(bulk.get(i), "bulk " + i + " " + random.nextLong() + "\n");
+        }
+        System.out.printf("%d files%n", files);
+        System.out.printf("%-42s %13s %13s %7s%n", "", "object files", "pack", "speedup");
+        long start = System.nanoTime();
+        for (File file : loose) {
+            ObjectStore.writeBlob(file);
+        }
+        long looseTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        ObjectStore.writeBlobs(bulk, count -> { });
+        long bulkTime = System.nanoTime() - start;
+        report("persist the blobs of new files", looseTime, bulkTime);
+    }
+
+    private static void benchDiff(int files) {
+        Random random = new Random(79);
+        // the trees only need the sha1s of the blobs
+        Tree from = new Tree();
+        for (int i = 0; i < files; i++) {
+            from.addFile("d" + i / 100 + File.separator + "f" + i, Utils.sha1("file " + i));
+        }
+        Tree to = new Tree(from);
+        for (int i = 0; i < 10; i++) {
+            int file = random.nextInt(files);
+            to.addFile("d" + file / 100 + File.separator + "f" + file, Utils.sha1("changed " + file));
+        }
+        ObjectStore.writeTree(from);
+        ObjectStore.writeTree(to);
+        String fromSha1 = from.getSha1();
+        String toSha1 = to.getSha1();
+        System.out.printf("%d files%n", files);
+        System.out.printf("%-42s %13s %13s %7s%n", "", "file maps", "Tree.diff", "speedup");
+
+        ObjectStore.clearCache();
+        long start = System.nanoTime();
+        Map<String, String> fromFiles = ObjectStore.readTree(fromSha1).getFiles();
+        Map<String, String> toFiles = ObjectStore.readTree(toSha1).getFiles();
+        Set<String> paths = new HashSet<>(fromFiles.keySet());
+        paths.addAll(toFiles.keySet());
+        int mapChanges = 0;
+        for (String path : paths) {
+            if (!Objects.equals(fromFiles.get(path), toFiles.get(path))) {
+                mapChanges++;
+            }
+        }
+        long mapTime = System.nanoTime() - start;
+        ObjectStore.clearCache();
+        start = System.nanoTime();
+        List<String> changes = new ArrayList<>();
+        Tree.diff(ObjectStore.readTree(fromSha1), ObjectStore.readTree(toSha1), (path, a, b) -> changes.add(path));
+        long diffTime = System.nanoTime() - start;
+        if (mapChanges != changes.size()) {
+            throw new IllegalStateException("the changes differ");
+        }
+        report("find the changed files (" + changes.size() + ")", mapTime, diffTime);
+    }
+
+    private static void benchLineMerge(int lines) {
+        Random random = new Random(83);
+        StringBuilder splitPoint = new StringBuilder();
+        StringBuilder head = new StringBuilder();
+        StringBuilder other = new StringBuilder();
+        // the branches change lines far apart, in turn, 200 places in all
+        int every = Math.max(1, lines / 200);
+        for (int i = 0; i < lines; i++) {
+            String line = "line " + i + " " + random.nextLong() + "\n";
+            splitPoint.append(line);
+            boolean changed = i % every == 0;
+            head.append(changed && i / every % 2 == 0 ? "head " + line : line);
+            other.append(changed && i / every % 2 == 1 ? "other " + line : line);
+        }
+        byte[][] contents = {splitPoint.toString().getBytes(StandardCharsets.UTF_8),
+            head.toString().getBytes(StandardCharsets.UTF_8), other.toString().getBytes(StandardCharsets.UTF_8)};
+        System.out.printf("%d lines, %d bytes%n", lines, contents[0].length);
+        long start = System.nanoTime();
+        LineMerge.Result result = LineMerge.merge(contents[0], contents[1], contents[2]);
+        long time = System.nanoTime() - start;
+        // a whole file conflict is one conflict, the size of both files
+        System.out.printf("merged by lines in %.1f ms: %d conflicts, %d bytes%n", time / 1e6, result.conflicts,
+                result.content.length);
+    }
+
+    /**
+     * what Utils.sha1 did: a new MessageDigest, and the digest formatted byte by byte
+     */
+    private static String legacySha1(String header, byte[] content) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update(header.getBytes(StandardCharsets.UTF_8));
+            md.update(content);
+            Formatter result = new Formatter();
+            for (byte b : md.digest()) {
+                result.format("%02x", b);
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
+    /**
+     * BRANCHES branches named like the branches of CI jobs
+     */
+    private static void benchRefs(int branches) {
+        Random random = new Random(61);
+        Repository.BRANCH_HEAD_DIR.mkdirs();
+        Refs refs = new Refs();
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < branches; i++) {
+            String name = "ci-" + Integer.toHexString(random.nextInt()) + "-" + i;
+            refs.update(name, Utils.sha1(name));
+            names.add(name);
+        }
+        List<String> lookups = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            lookups.add(names.get(random.nextInt(branches)));
+        }
+        System.out.printf("%d branches%n", branches);
+        System.out.printf("%-42s %13s %13s %7s%n", "", "loose", "packed", "speedup");
+
+        long start = System.nanoTime();
+        int loose = new Refs().listBranches().size();
+        long looseList = System.nanoTime() - start;
+        resolveEach(lookups);
+        start = System.nanoTime();
+        resolveEach(lookups);
+        long looseResolve = System.nanoTime() - start;
+
+        new Refs().pack();
+        start = System.nanoTime();
+        int packed = new Refs().listBranches().size();
+        long packedList = System.nanoTime() - start;
+        // the first time compiles the binary search
+        resolveEach(lookups);
+        start = System.nanoTime();
+        resolveEach(lookups);
+        long packedResolve = System.nanoTime() - start;
+        if (loose != branches || packed != branches) {
+            throw new IllegalStateException("the branches listed differ");
+        }
+        report("list the branches", looseList, packedList);
+        report("resolve 1000 branches", looseResolve, packedResolve);
+        System.out.printf("packed-refs: %d KB%n", Refs.PACKED_REFS.length() / 1024);
+    }
+
+    /**
+     * COMMITS messages made of a few words, most of them distinct
+     */
+    private static void benchFind(int commits) throws IOException {
+        Random random = new Random(61);
+        String[] verbs = {"fix", "add", "remove", "refactor", "update", "merge"};
+        String[] things = {"parser", "index", "checkout", "merge", "status", "log", "daemon", "tests"};
+        List<Integer> positions = new ArrayList<>();
+        List<String> messages = new ArrayList<>();
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < commits; i++) {
+            String message = verbs[random.nextInt(verbs.length)] + " " + things[random.nextInt(things.length)]
+                    + " for issue " + random.nextInt(commits);
+            positions.add(i);
+            messages.add(message);
+            log.append(Utils.sha1("" + i)).append(' ').append(i).append(' ').append(message).append('\n');
+        }
+        Repository.LOGS.mkdirs();
+        Utils.writeContents(Repository.LOGS_HEAD, log.toString());
+        long start = System.nanoTime();
+        MessageIndex index = MessageIndex.open(Repository.MESSAGE_INDEX);
+        index.replace(positions, messages);
+        System.out.printf("%d commits indexed in %.1f ms, %d records, %d KB%n", commits,
+                (System.nanoTime() - start) / 1e6, index.size(), Repository.MESSAGE_INDEX.length() / 1024);
+        System.out.printf("%-42s %13s %13s %7s%n", "", "logs/HEAD", "index", "speedup");
+
+        String exact = messages.get(commits / 2);
+        String prefix = exact.substring(0, exact.lastIndexOf(' ') + 2);
+        String substring = exact.substring(exact.indexOf("issue"));
+        benchFindQuery("exact: " + exact, exact, "", index);
+        benchFindQuery("prefix: " + prefix, prefix, "--prefix", index);
+        benchFindQuery("substring: " + substring, substring, "--substring", index);
+        index.close();
+    }
+
+    private static void benchFindQuery(String name, String text, String mode, MessageIndex index) {
+        long start = System.nanoTime();
+        int scanned = 0;
+        for (String line : Utils.readContentsAsString(Repository.LOGS_HEAD).split("\n")) {
+            String message = line.split(" ", 3)[2];
+            if (mode.equals("--prefix") ? message.startsWith(text)
+                    : mode.equals("--substring") ? message.contains(text) : message.equals(text)) {
+                scanned++;
+            }
+        }
+        long scan = System.nanoTime() - start;
+        int[] candidates = new int[1];
+        // the first time compiles the search, a daemon runs it compiled
+        findCandidates(text, mode, index, candidates);
+        candidates[0] = 0;
+        start = System.nanoTime();
+        findCandidates(text, mode, index, candidates);
+        long indexed = System.nanoTime() - start;
+        report(name, scan, indexed);
+        System.out.printf("  %d commits, %d candidates%n", scanned, candidates[0]);
+    }
+
+    private static void findCandidates(String text, String mode, MessageIndex index, int[] candidates) {
+        if (mode.equals("--prefix")) {
+            index.findPrefix(text, position -> candidates[0]++);
+        } else if (mode.equals("--substring")) {
+            index.findSubstring(text, position -> candidates[0]++);
+        } else {
+            index.findExact(text, position -> candidates[0]++);
+        }
+    }
+
+    private static void resolveEach(List<String> branches) {
+        for (String name : branches) {
+            // each lookup is a new command
+            if (!Utils.sha1(name).equals(new Refs().resolve(name))) {
+                throw new IllegalStateException("wrong ref " + name);
+            }
+        }
+    }
+
+    private static void readMergeObjects(List<String> commits, List<String> changed) {
+        List<Map<String, String>> treeFiles = new ArrayList<>();
+        for (String commit : commits) {
+            treeFiles.add(ObjectStore.readCommit(commit).getTreeFiles());
+        }
+        for (String path : changed) {
+            for (Map<String, String> files : treeFiles) {
+                ObjectStore.readBlob(files.get(path));
+            }
+        }
+    }
+
+    /**
+     * a repository with 100 files and 10 commits, in which commands that do not change it are run
+     */
+    private static void benchStartup(int runs) throws IOException {
+        // the commands run in the repository, the class path may be relative to this directory
+        List<String> entries = new ArrayList<>();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            entries.add(new File(entry).getAbsolutePath());
+        }
+        List<String> classPath = List.of("java", "-cp", String.join(File.pathSeparator, entries));
+        List<String> cds = null;
+        String cdsDir = System.getProperty("gitlet.cds");
+        if (cdsDir != null) {
+            File dir = new File(cdsDir).getAbsoluteFile();
+            cds = List.of("java", "-XX:SharedArchiveFile=" + new File(dir, "gitlet.jsa"),
+                    "-cp", new File(dir, "gitlet.jar").getPath());
+        }
+        delete(Repository.GITLET_DIR);
+        runCommand(classPath, "init");
+        for (int i = 0; i < 10; i++) {
+            for (int j = 0; j < 10; j++) {
+                Utils.writeContents(new File(Repository.CWD, "f" + (i * 10 + j)), "version " + i);
+            }
+            runCommand(classPath, "add", ".");
+            runCommand(classPath, "commit", "commit " + i);
+        }
+        String[][] commands = {{"status"}, {"log"}, {"global-log"}, {"find", "commit 5"},
+            {"add", "f1"}, {"checkout", "--", "f1"}};
+        System.out.printf("%-42s %13s %13s %7s%n", "", "classes", cds == null ? "" : "cds", "");
+        for (String[] command : commands) {
+            long plain = 0;
+            long shared = 0;
+            for (int i = 0; i < runs; i++) {
+                plain += runCommand(classPath, command);
+                if (cds != null) {
+                    shared += runCommand(cds, command);
+                }
+            }
+            String name = String.join(" ", command);
+            if (cds == null) {
+                System.out.printf("%-42s %10.1f ms%n", name, plain / 1e6 / runs);
+            } else {
+                report(name, plain / runs, shared / runs);
+            }
+        }
+    }
+
+    /**
+     * run the command in a new JVM
+     * @return the wall time, in nanoseconds
+     */
+    private static long runCommand(List<String> java, String... command) throws IOException {
+        List<String> processCommand = new ArrayList<>(java);
+        processCommand.add("gitlet.Main");
+        processCommand.addAll(Arrays.asList(command));
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(processCommand).directory(Repository.CWD)
+                .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        try {
+            if (process.waitFor() != 0) {
+                throw new IllegalStateException(String.join(" ", command) + " failed");
+            }
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * list the files like Repository.listAllFiles did before it was parallel
+     */
+    private static void listSequentially(File file, String relativePath, List<String> files) {
+        if (file.isDirectory() && !file.getName().equals(".gitlet") && !file.getName().equals("gitlet")) {
+            File[] subFiles = file.listFiles();
+            if (subFiles != null) {
+                for (File subFile : subFiles) {
+                    listSequentially(subFile, relativePath.isEmpty() ? subFile.getName()
+                            : relativePath + File.separator + subFile.getName(), files);
+                }
+            }
+        } else if (file.isFile()) {
+            files.add(relativePath);
+        }
+    }
+
+    private static long deflatedSize(byte[] content) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+            byte[] buffer = new byte[1 << 16];
+            long size = 0;
+            while (!deflater.finished()) {
+                size += deflater.deflate(buffer);
+            }
+            return size;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * OBJECTS objects in the index, a tenth of them commits, and 10000 of them in object files
+     */
+    private static void benchAbbrev(int objects) {
+        Random random = new Random(61);
+        SortedRecordFile index = SortedRecordFile.open(ObjectStore.INDEX_FILE, 21);
+        List<byte[]> records = new ArrayList<>();
+        List<String> commits = new ArrayList<>();
+        for (int i = 0; i < objects; i++) {
+            byte[] record = new byte[21];
+            random.nextBytes(record);
+            record[20] = i % 10 == 0 ? ObjectStore.TYPE_COMMIT : ObjectStore.TYPE_BLOB;
+            if (record[20] == ObjectStore.TYPE_COMMIT) {
+                commits.add(Utils.toHexString(Arrays.copyOf(record, 20)));
+            }
+            records.add(record);
+        }
+        long start = System.nanoTime();
+        index.replace(records);
+        System.out.printf("index of %d objects written in %.1f ms%n", objects, (System.nanoTime() - start) / 1e6);
+        // the object files of the first commits, as they were found before the index
+        for (String commit : commits.subList(0, Math.min(1000, commits.size()))) {
+            Utils.join(Repository.OBJECT_DIR, commit.substring(0, 2)).mkdir();
+            Utils.writeContents(ObjectStore.objectFile(commit), "");
+        }
+        for (int i = 0; i < 9000; i++) {
+            String sha1 = Utils.sha1("" + random.nextLong());
+            Utils.join(Repository.OBJECT_DIR, sha1.substring(0, 2)).mkdir();
+            Utils.writeContents(ObjectStore.objectFile(sha1), "");
+        }
+
+        int lookups = 1000;
+        start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            scanByPrefix(commits.get(i % 1000).substring(0, 8));
+        }
+        long scan = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            if (ObjectStore.findByPrefix(commits.get(i % 1000).substring(0, 8), ObjectStore.TYPE_COMMIT).size() != 1) {
+                throw new IllegalStateException("commit not found");
+            }
+        }
+        long lookup = System.nanoTime() - start;
+        System.out.printf("%-42s %13s %13s %7s%n", "", "object files", "index", "speedup");
+        report("find 1000 commits by 8 digits", scan, lookup);
+        System.out.printf("  %.1f us per commit with the index of %d objects,"
+                + " listing only 10000 object files%n", lookup / 1e3 / lookups, objects);
+    }
+
+    /**
+     * the objects whose sha1 starts with the prefix, by listing the object files
+     * (how they were found before the object index)
+     */
+    private static List<String> scanByPrefix(String prefix) {
+        List<String> result = new ArrayList<>();
+        File[] dirs = Repository.OBJECT_DIR.listFiles(File::isDirectory);
+        for (File dir : dirs == null ? new File[0] : dirs) {
+            List<String> names = Utils.plainFilenamesIn(dir);
+            for (String name : names == null ? List.<String>of() : names) {
+                String sha1 = dir.getName() + name;
+                if (sha1.startsWith(prefix)) {
+                    result.add(sha1);
+                }
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * the split point found by comparing the first parent lists, from the initial commit
+     */
+    private static int firstParentSplitPoint(CommitGraph graph, int a, int b) {
+        List<Integer> parentsA = firstParents(graph, a);
+        List<Integer> parentsB = firstParents(graph, b);
+        int splitPoint = CommitGraph.NONE;
+        for (int i = 0; i < Math.min(parentsA.size(), parentsB.size()); i++) {
+            if (!parentsA.get(i).equals(parentsB.get(i))) {
+                break;
+            }
+            splitPoint = parentsA.get(i);
+        }
+        return splitPoint;
+    }
+
+    private static List<Integer> firstParents(CommitGraph graph, int position) {
+        List<Integer> parents = new ArrayList<>();
+        for (; position != CommitGraph.NONE; position = graph.getParent(position, 0)) {
+            parents.add(position);
+        }
+        Collections.reverse(parents);
+        return parents;
+    }
+
+    /**
+     * the common ancestor with the largest generation (then the newest), from all the ancestors
+     */
+    private static int bestCommonAncestor(CommitGraph graph, int a, int b) {
+        Set<Integer> ancestorsA = ancestors(graph, a);
+        int best = CommitGraph.NONE;
+        for (int position : ancestors(graph, b)) {
+            if (ancestorsA.contains(position) && (best == CommitGraph.NONE
+                    || graph.getGeneration(position) > graph.getGeneration(best)
+                    || graph.getGeneration(position) == graph.getGeneration(best) && position > best)) {
+                best = position;
+            }
+        }
+        return best;
+    }
+
+    private static Set<Integer> ancestors(CommitGraph graph, int position) {
+        Set<Integer> ancestors = new HashSet<>();
+        Deque<Integer> pending = new ArrayDeque<>();
+        pending.push(position);
+        while (!pending.isEmpty()) {
+            int commit = pending.pop();
+            if (commit != CommitGraph.NONE && ancestors.add(commit)) {
+                pending.push(graph.getParent(commit, 0));
+                pending.push(graph.getParent(commit, 1));
+            }
+        }
+        return ancestors;
+    }
+
+    /**
+     * what Java serialization wrote for a commit: its fields and its flat tree
+     */
+    private static Object[] legacyCommit(Commit commit) {
+        return new Object[]{commit.getSha1(), commit.getCommitTime(), commit.getMessage(),
+            commit.getParentCommitID(), new HashMap<>(commit.getTreeFiles())};
+    }
+
+    private static long size(File file) {
+        File[] files = file.listFiles();
+        if (files == null) {
+            return file.length();
+        }
+        long size = 0;
+        for (File f : files) {
+            size += size(f);
+        }
+        return size;
+    }
+
+    private static void report(String name, long before, long after) {
+        System.out.printf("%-42s %10.1f ms %10.1f ms %6.2fx%n", name,
+                before / 1e6, after / 1e6, (double) before / after);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+}
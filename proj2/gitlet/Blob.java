@@ -1,41 +1,97 @@
 package gitlet;
 
-import jdk.jfr.Percentage;
-
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
-import java.nio.file.Files;
-import java.nio.file.Path;
-
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 
-public class Blob implements Persistable {
+/**
+ * A blob is the content of a file. The content is never held in memory:
+ * it is hashed by streaming it through a bounded buffer, and stored the
+ * same way by ObjectStore.writeBlob.
+ */
+public class Blob implements Serializable {
 
-    private static final long SerialVersionUID = 3L;
+    /** pinned to the value of the blobs written by Java serialization, so they can still be read */
+    private static final long serialVersionUID = -4355904760888818902L;
     private String filePath;
+    /** only set in the blobs written by Java serialization */
     private byte[] fileContent;
     private String sha1;
 
+    /** the size of the buffer used to stream the content */
+    static final int BUFFER_SIZE = 64 * 1024;
+
     public Blob(String filePath){
         this.filePath = filePath;
-        this.fileContent = Utils.readContents(filePath);
-        this.sha1 = sha1();
+        this.sha1 = hashFile(new File(filePath));
+    }
 
+    public String getSha1(){
+        return sha1;
     }
 
-    public byte[] getContent(){
+    /**
+     * the content of a blob written by Java serialization
+     * @return
+     */
+    byte[] getSerializedContent(){
         return fileContent;
     }
 
-    @Override
-    public String getSha1(){
-        return sha1;
+    /**
+     * get the sha1 of the content as a blob, like hashFile
+     * @param content
+     * @return
+     */
+    public static String hashContent(byte[] content){
+        return Utils.sha1("blob " + content.length + "\0", content);
     }
 
-    public String sha1(){
-        String header = "blob " + fileContent.length + "\0";
-        return Utils.sha1(header, fileContent);
+    /**
+     * get the sha1 of the file as a blob, streaming the content
+     * @param file
+     * @return
+     */
+    public static String hashFile(File file){
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return copyAndHash(in, in.size(), null);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
     }
 
+    /**
+     * copy size bytes of in to out (if not null) through a bounded buffer
+     * @return the sha1 of the blob made of the copied bytes
+     */
+    static String copyAndHash(FileChannel in, long size, OutputStream out) throws IOException {
+        MessageDigest md = Utils.sha1Digest();
+        md.update(("blob " + size + "\0").getBytes(StandardCharsets.UTF_8));
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(size, 1)));
+        long remaining = size;
+        while (remaining > 0) {
+            buffer.clear();
+            if (remaining < buffer.capacity()) {
+                buffer.limit((int) remaining);
+            }
+            if (in.read(buffer) < 0) {
+                throw new IOException("file changed while reading it");
+            }
+            int n = buffer.position();
+            buffer.flip();
+            md.update(buffer);
+            if (out != null) {
+                out.write(buffer.array(), 0, n);
+            }
+            remaining -= n;
+        }
+        return Utils.toHexString(md.digest());
+    }
 
 }
@@ -0,0 +1,74 @@
+package gitlet;
+
+/**
+ * Splits a content in chunks at positions chosen by the content itself (content defined chunking,
+ * FastCDC): a rolling gear hash of the last 64 bytes is computed at every byte, and a chunk ends
+ * where its top bits are 0. An insertion or a deletion then only changes the chunks around it,
+ * the following chunks end at the same bytes as before and are the same objects.
+ *
+ * The chunks are MIN_SIZE to MAX_SIZE bytes. Normalized chunking: before AVERAGE_SIZE a harder
+ * condition (more bits) is used than after it, so the sizes stay close to AVERAGE_SIZE.
+ */
+public class Chunker {
+    public static final int MIN_SIZE = 16 * 1024;
+    public static final int AVERAGE_SIZE = 64 * 1024;
+    public static final int MAX_SIZE = 256 * 1024;
+    /** 2 bits more than log2(AVERAGE_SIZE) before the average size, 2 bits less after it */
+    private static final long MASK_SMALL = mask(18);
+    private static final long MASK_LARGE = mask(14);
+
+    /** a random value for every byte, always the same so the chunks are the same in every repository */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        long seed = 61;
+        for (int i = 0; i < GEAR.length; i++) {
+            // splitmix64
+            seed += 0x9E3779B97F4A7C15L;
+            long z = seed;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    private Chunker() {
+    }
+
+    /**
+     * the top bits of the hash, which depend on the last 64 bytes
+     */
+    private static long mask(int bits) {
+        return ((1L << bits) - 1) << (64 - bits);
+    }
+
+    /**
+     * find the end of the chunk starting at offset
+     * @param data
+     * @param offset
+     * @param length the number of bytes left, the content ends there if it is below MAX_SIZE
+     * @return the length of the chunk
+     */
+    public static int cut(byte[] data, int offset, int length) {
+        if (length <= MIN_SIZE) {
+            return length;
+        }
+        int end = Math.min(length, MAX_SIZE);
+        int normal = Math.min(end, AVERAGE_SIZE);
+        long hash = 0;
+        int i = MIN_SIZE;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+            if ((hash & MASK_SMALL) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < end; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+            if ((hash & MASK_LARGE) == 0) {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+}
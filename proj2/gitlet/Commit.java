@@ -1,15 +1,15 @@
 package gitlet;
 
-import java.io.Serializable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
-import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import static gitlet.Utils.toCommitDate;
-
 /** Represents a gitlet commit object.
  *  does at a high level.
  *
@@ -29,7 +29,11 @@ public class Commit implements Persistable {
     private LocalDateTime commitTime;
     private final String sha1HashCode;
     private List<String> parentCommits;
-    private Index index;
+    /** The sha1 of the tree of this Commit, the commit object only refers to its tree by it. */
+    private String treeSha1;
+    /** The tree of a commit built in memory, or embedded in a commit written by Java
+     *  serialization; null for a commit read from its object file, whose tree is read
+     *  through ObjectStore.TREES by getTree(). */
     private Tree tree;
 
 
@@ -38,30 +42,31 @@ public class Commit implements Persistable {
      * @param time
      * @param message
      * @param parentCommits
-     * @param index
      * @param tree
      */
-    public Commit(LocalDateTime time, String message, List<String> parentCommits, Index index, Tree tree) {
+    public Commit(LocalDateTime time, String message, List<String> parentCommits, Tree tree) {
         this.message = message;
         this.parentCommits = parentCommits;
         this.commitTime = time;
-        this.index = index;
         this.tree = tree;
+        this.treeSha1 = tree.getSha1();
         this.sha1HashCode = sha1();
     }
 
-
-    public String toString(){
-        String commitTime_ = toCommitDate(commitTime);
-        return "===\n" +
-                "commit " + sha1HashCode + "\n" +
-                "Data: " + commitTime_ + "\n" +
-                message + "\n";
+    /**
+     * a commit read from its object file, its tree is loaded lazily
+     */
+    private Commit(String sha1, LocalDateTime time, String message, List<String> parentCommits, String treeSha1) {
+        this.message = message;
+        this.parentCommits = parentCommits;
+        this.commitTime = time;
+        this.treeSha1 = treeSha1;
+        this.sha1HashCode = sha1;
     }
 
     private String sha1(){
         StringBuilder content = new StringBuilder();
-        content.append("tree").append(tree.getSha1()).append("\n");
+        content.append("tree").append(getTreeSha1()).append("\n");
         if (parentCommits != null && !parentCommits.isEmpty()){
             for (String parentCommit : parentCommits) {
                 content.append("parent ").append(parentCommit).append("\n");
@@ -80,11 +85,39 @@ public class Commit implements Persistable {
         return sha1HashCode;
     }
 
+    /**
+     * get the tree, reading it through ObjectStore.TREES: a commit read from its
+     * object file does not keep it
+     * @return
+     */
     public Tree getTree(){
-        return tree;
+        return tree != null ? tree : ObjectStore.readTree(treeSha1);
+    }
+
+    /**
+     * the weight of the commit in ObjectStore.COMMITS, with the tree it holds
+     */
+    long weight(){
+        return tree == null ? 1 : 1 + tree.weight();
+    }
+
+    public String getTreeSha1(){
+        if (treeSha1 == null){
+            // a commit written by Java serialization
+            treeSha1 = tree.getSha1();
+        }
+        return treeSha1;
     }
 
 
+    public LocalDateTime getCommitTime(){
+        return commitTime;
+    }
+
+    public String getMessage(){
+        return message;
+    }
+
     public List<String> getParentCommitID(){
         return parentCommits;
     }
@@ -95,16 +128,64 @@ public class Commit implements Persistable {
      * @return
      */
     public boolean treeContainsFile(String file){
-        return tree.containsFile(file);
+        return getTree().containsFile(file);
     }
 
     public String treeFileSha1(String file){
-        return tree.getFileSha1(file);
+        return getTree().getFileSha1(file);
     }
 
     public Map<String, String> getTreeFiles(){
-        Map<String, String> files = tree.getFiles();
+        Map<String, String> files = getTree().getFiles();
         return files;
     }
 
+    @Override
+    public byte getType(){
+        return ObjectStore.TYPE_COMMIT;
+    }
+
+    /**
+     * [tree sha1: 20 bytes][parent count][parent sha1: 20 bytes]...
+     * [epoch second][nano][message length][message]
+     * the files of the tree are not part of the commit
+     * @param out
+     * @throws IOException
+     */
+    @Override
+    public void encode(DataOutputStream out) throws IOException {
+        out.write(Utils.fromHexString(getTreeSha1()));
+        List<String> parents = parentCommits == null ? List.of() : parentCommits;
+        out.writeByte(parents.size());
+        for (String parent : parents) {
+            out.write(Utils.fromHexString(parent));
+        }
+        out.writeLong(commitTime.toEpochSecond(ZoneOffset.UTC));
+        out.writeInt(commitTime.getNano());
+        byte[] msg = message.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(msg.length);
+        out.write(msg);
+    }
+
+    public static Commit decode(String sha1, DataInputStream in) throws IOException {
+        byte[] id = new byte[20];
+        in.readFully(id);
+        String treeSha1 = Utils.toHexString(id);
+        int parentCount = in.readUnsignedByte();
+        List<String> parents = null;
+        if (parentCount > 0){
+            parents = new ArrayList<>();
+            for (int i = 0; i < parentCount; i++) {
+                in.readFully(id);
+                parents.add(Utils.toHexString(id));
+            }
+        }
+        long epochSecond = in.readLong();
+        int nano = in.readInt();
+        LocalDateTime time = LocalDateTime.ofEpochSecond(epochSecond, nano, ZoneOffset.UTC);
+        byte[] msg = new byte[in.readInt()];
+        in.readFully(msg);
+        String message = new String(msg, StandardCharsets.UTF_8);
+        return new Commit(sha1, time, message, parents, treeSha1);
+    }
 }
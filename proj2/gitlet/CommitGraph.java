@@ -0,0 +1,424 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * The commit graph (.gitlet/commit-graph) keeps the history without the commit objects,
+ * like the commit-graph file of git: a memory mapped table with one fixed width record per commit
+ *
+ *   [magic "CGPH"][version][3 bytes unused]
+ *   [commit sha1: 20 bytes][tree sha1: 20 bytes][first parent][second parent]
+ *   [epoch second][nano][generation]...
+ *
+ * A parent is the position of its record (-1 if there is none), and the records are only
+ * appended, so the parents of a commit are always before it. The generation of a commit
+ * is 1 + the largest generation of its parents (1 for the initial commit): a commit can only
+ * be an ancestor of the commits with a larger generation.
+ *
+ * The commits missing from the graph (it did not exist yet, or they were made by an older
+ * version of gitlet) are added from their objects, after their ancestors.
+ *
+ * The positions of the commits are looked up in a SortedRecordFile next to the graph
+ * (.gitlet/commit-graph-ids) of the records
+ *   [commit sha1: 20 bytes][position: int]
+ * by binary search. They are added in the order of the positions, so the records index the first
+ * positions of the graph: the missing ones (the command was interrupted, or the graph was written
+ * by an older version of gitlet) are added when the graph is opened. A new graph drops them.
+ */
+public class CommitGraph {
+    private static final byte[] MAGIC = "CGPH".getBytes(StandardCharsets.US_ASCII);
+    private static final byte VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+    static final int RECORD_LENGTH = 64;
+    private static final int ID_RECORD_LENGTH = 24;
+
+    private static final int TREE_OFFSET = 20;
+    private static final int PARENT1_OFFSET = 40;
+    private static final int PARENT2_OFFSET = 44;
+    private static final int SECOND_OFFSET = 48;
+    private static final int NANO_OFFSET = 56;
+    private static final int GENERATION_OFFSET = 60;
+
+    /** no parent */
+    public static final int NONE = -1;
+
+    /** the flags painted by mergeBase */
+    private static final byte REACHED_FROM_A = 1;
+    private static final byte REACHED_FROM_B = 2;
+    private static final byte STALE = 4;
+
+    /** open for the lifetime of the graph, to append the new commits */
+    private final FileChannel channel;
+    /** the records when the graph was opened */
+    private final MappedByteBuffer records;
+    private final int mapped;
+    /** the records appended since the graph was opened */
+    private ByteBuffer appended = ByteBuffer.allocate(RECORD_LENGTH * 16);
+    private int size;
+    /** <sha1, position> of the commits, sorted by sha1 */
+    private final SortedRecordFile ids;
+    /** the identity (device and inode) of the file when it was opened */
+    private Object fileKey;
+
+    private CommitGraph(FileChannel channel, int records, SortedRecordFile ids) throws IOException {
+        this.channel = channel;
+        this.records = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_LENGTH, (long) records * RECORD_LENGTH);
+        this.mapped = records;
+        this.size = records;
+        this.ids = ids;
+    }
+
+    /**
+     * open the commit graph, creating it if it does not exist
+     * @param file
+     * @return
+     */
+    public static CommitGraph open(File file) {
+        try {
+            FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            channel.read(header, 0);
+            File idsFile = new File(file.getParentFile(), file.getName() + "-ids");
+            if (header.position() < HEADER_LENGTH
+                    || !Arrays.equals(Arrays.copyOf(header.array(), MAGIC.length), MAGIC)
+                    || header.get(MAGIC.length) != VERSION) {
+                channel.truncate(0);
+                header.clear();
+                header.put(MAGIC).put(VERSION).put(new byte[3]).flip();
+                channel.write(header, 0);
+                // the positions of the commits of another graph
+                idsFile.delete();
+            }
+            // a record not written completely (the command was interrupted) is dropped
+            long records = (channel.size() - HEADER_LENGTH) / RECORD_LENGTH;
+            channel.truncate(HEADER_LENGTH + records * RECORD_LENGTH);
+            CommitGraph graph = new CommitGraph(channel, (int) records,
+                    SortedRecordFile.open(idsFile, ID_RECORD_LENGTH));
+            graph.fileKey = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+            graph.addMissingIds();
+            return graph;
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * whether the file still has the commits of this graph, and no more:
+     * another process may have added commits to it, or replaced it
+     * @param file
+     * @return
+     */
+    public boolean isCurrent(File file) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            return attrs.size() == HEADER_LENGTH + (long) size * RECORD_LENGTH
+                    && (fileKey == null || fileKey.equals(attrs.fileKey()));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        ids.close();
+    }
+
+    /**
+     * add the records of the positions which have none, after the ones which have
+     */
+    private void addMissingIds() {
+        if (ids.size() > size) {
+            ids.replace(new ArrayList<>());
+        }
+        List<byte[]> missing = new ArrayList<>();
+        for (int position = ids.size(); position < size; position++) {
+            missing.add(idRecord(buffer(position), offset(position), position));
+        }
+        if (!missing.isEmpty()) {
+            ids.append(missing);
+        }
+    }
+
+    private static byte[] idRecord(ByteBuffer buffer, int offset, int position) {
+        byte[] record = new byte[ID_RECORD_LENGTH];
+        buffer.get(offset, record, 0, 20);
+        return ByteBuffer.wrap(record).putInt(20, position).array();
+    }
+
+    /**
+     * the number of commits in the graph
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * find the position of the commit by binary search in the records of the ids
+     * @param sha1
+     * @return the position, or NONE if the commit is not in the graph
+     */
+    public int find(String sha1) {
+        List<byte[]> found = ids.find(Utils.fromHexString(sha1), 0xff);
+        return found.isEmpty() ? NONE : ByteBuffer.wrap(found.get(0)).getInt(20);
+    }
+
+    /**
+     * get the position of the commit, adding it (and its missing ancestors) from its object
+     * if it is not in the graph
+     * @param sha1
+     * @return
+     */
+    public int position(String sha1) {
+        int position = find(sha1);
+        if (position != NONE) {
+            return position;
+        }
+        // add the ancestors first, without recursion as the history may be long
+        Deque<Commit> pending = new ArrayDeque<>();
+        pending.push(ObjectStore.readCommit(sha1));
+        while (!pending.isEmpty()) {
+            Commit commit = pending.peek();
+            Commit missingParent = null;
+            List<String> parents = commit.getParentCommitID();
+            if (parents != null) {
+                for (String parent : parents) {
+                    if (find(parent) == NONE) {
+                        missingParent = ObjectStore.readCommit(parent);
+                        break;
+                    }
+                }
+            }
+            if (missingParent != null) {
+                pending.push(missingParent);
+            } else {
+                pending.pop();
+                if (find(commit.getSha1()) == NONE) {
+                    add(commit);
+                }
+            }
+        }
+        return find(sha1);
+    }
+
+    /**
+     * append a new commit, its parents must already be in the graph
+     * @param commit
+     * @return the position of the commit
+     */
+    public int add(Commit commit) {
+        int position = find(commit.getSha1());
+        if (position != NONE) {
+            return position;
+        }
+        List<String> parents = commit.getParentCommitID();
+        int parent1 = parents == null || parents.isEmpty() ? NONE : position(parents.get(0));
+        int parent2 = parents == null || parents.size() < 2 ? NONE : position(parents.get(1));
+        int generation = 1 + Math.max(getGeneration(parent1), getGeneration(parent2));
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH);
+        record.put(Utils.fromHexString(commit.getSha1()));
+        record.put(Utils.fromHexString(commit.getTreeSha1()));
+        record.putInt(parent1);
+        record.putInt(parent2);
+        LocalDateTime time = commit.getCommitTime();
+        record.putLong(time.toEpochSecond(ZoneOffset.UTC));
+        record.putInt(time.getNano());
+        record.putInt(generation);
+        record.flip();
+        try {
+            channel.write(record, HEADER_LENGTH + (long) size * RECORD_LENGTH);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        record.flip();
+        if (appended.remaining() < RECORD_LENGTH) {
+            appended = ByteBuffer.allocate(appended.capacity() * 2).put(appended.flip());
+        }
+        appended.put(record);
+        position = size++;
+        ids.append(idRecord(record, 0, position));
+        return position;
+    }
+
+    public String getSha1(int position) {
+        return readId(position, 0);
+    }
+
+    public String getTreeSha1(int position) {
+        return readId(position, TREE_OFFSET);
+    }
+
+    private String readId(int position, int offset) {
+        byte[] id = new byte[20];
+        buffer(position).get(offset(position) + offset, id);
+        return Utils.toHexString(id);
+    }
+
+    /**
+     * the buffer holding the record of the commit, read with offset(position)
+     */
+    private ByteBuffer buffer(int position) {
+        return position < mapped ? records : appended;
+    }
+
+    private int offset(int position) {
+        return (position < mapped ? position : position - mapped) * RECORD_LENGTH;
+    }
+
+    /**
+     * get the position of the first (n = 0) or second (n = 1) parent
+     * @param position
+     * @param n
+     * @return the position of the parent, or NONE
+     */
+    public int getParent(int position, int n) {
+        return buffer(position).getInt(offset(position) + (n == 0 ? PARENT1_OFFSET : PARENT2_OFFSET));
+    }
+
+    public LocalDateTime getCommitTime(int position) {
+        ByteBuffer buffer = buffer(position);
+        int offset = offset(position);
+        return LocalDateTime.ofEpochSecond(buffer.getLong(offset + SECOND_OFFSET),
+                buffer.getInt(offset + NANO_OFFSET), ZoneOffset.UTC);
+    }
+
+    /**
+     * @param position
+     * @return the generation of the commit, 0 for NONE
+     */
+    public int getGeneration(int position) {
+        if (position == NONE) {
+            return 0;
+        }
+        return buffer(position).getInt(offset(position) + GENERATION_OFFSET);
+    }
+
+    /**
+     * find the best common ancestor of the commits a and b, following all the parents
+     * (paint down to common, like git merge-base):
+     * the commits are visited from the largest generation, and painted with the sides
+     * they are reached from. A commit reached from both sides is a common ancestor, and
+     * its ancestors are stale: they can not be better. The walk stops when only stale
+     * commits are left, so it does not go below the common ancestors.
+     * @param a the position of a commit
+     * @param b the position of a commit
+     * @return the position of the common ancestor with the largest generation,
+     *         which is not an ancestor of the other common ancestors, or NONE
+     */
+    public int mergeBase(int a, int b) {
+        if (a == b) {
+            return a;
+        }
+        byte[] flags = new byte[size];
+        PositionQueue queue = new PositionQueue();
+        flags[a] = REACHED_FROM_A;
+        flags[b] = REACHED_FROM_B;
+        queue.add(a, getGeneration(a));
+        queue.add(b, getGeneration(b));
+        int notStale = 2;
+        int best = NONE;
+        while (notStale > 0) {
+            int commit = queue.poll();
+            byte paint = flags[commit];
+            if ((paint & STALE) == 0) {
+                notStale--;
+            }
+            if ((paint & (REACHED_FROM_A | REACHED_FROM_B | STALE)) == (REACHED_FROM_A | REACHED_FROM_B)) {
+                // the first common ancestor visited has the largest generation
+                if (best == NONE) {
+                    best = commit;
+                }
+                paint |= STALE;
+                flags[commit] = paint;
+            }
+            for (int n = 0; n < 2; n++) {
+                int parent = getParent(commit, n);
+                if (parent == NONE || (flags[parent] & paint) == paint) {
+                    continue;
+                }
+                if (flags[parent] == 0) {
+                    queue.add(parent, getGeneration(parent));
+                    if ((paint & STALE) == 0) {
+                        notStale++;
+                    }
+                } else if ((paint & STALE) != 0 && (flags[parent] & STALE) == 0) {
+                    // the parent is still in the queue: a commit is visited after all its children
+                    // in the walk, which have a larger generation
+                    notStale--;
+                }
+                flags[parent] |= paint;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @param ancestor the position of a commit
+     * @param commit the position of a commit
+     * @return whether ancestor is commit or one of its ancestors
+     */
+    public boolean isAncestor(int ancestor, int commit) {
+        return mergeBase(ancestor, commit) == ancestor;
+    }
+
+    /**
+     * the commits to visit: a binary heap of (generation, position),
+     * largest generation first, then newest first
+     */
+    private static class PositionQueue {
+        private long[] heap = new long[64];
+        private int size;
+
+        void add(int position, int generation) {
+            if (size == heap.length) {
+                heap = Arrays.copyOf(heap, size * 2);
+            }
+            long key = ((long) generation << 32) | position;
+            int i = size++;
+            while (i > 0 && heap[(i - 1) / 2] < key) {
+                heap[i] = heap[(i - 1) / 2];
+                i = (i - 1) / 2;
+            }
+            heap[i] = key;
+        }
+
+        int poll() {
+            int position = (int) heap[0];
+            long last = heap[--size];
+            int i = 0;
+            while (2 * i + 1 < size) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && heap[child + 1] > heap[child]) {
+                    child++;
+                }
+                if (heap[child] <= last) {
+                    break;
+                }
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = last;
+            return position;
+        }
+    }
+}
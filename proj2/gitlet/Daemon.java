@@ -0,0 +1,290 @@
+package gitlet;
+
+import gitlet.exception.ExitException;
+import gitlet.exception.GitletException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+
+import static gitlet.constant.MessageConstant.*;
+
+/**
+ * A daemon runs the commands of one repository in a single long-lived JVM, so that a command
+ * does not pay for starting the JVM, loading the classes and reading the commit graph, the packs
+ * and the commits again. It is started with "java gitlet.Main daemon" in the directory of the
+ * repository, and listens on the Unix domain socket .gitlet/daemon.sock. When the socket exists,
+ * Main forwards its arguments to it and prints what the command prints.
+ *
+ * The commands run one at a time, with System.out and System.err sent to the client:
+ *   request:  [argument count: int][argument: UTF]...
+ *   response: [STDOUT or STDERR][length: int][bytes]... [EXIT][exit code: int]
+ *
+ * Another process (a gitlet command run without the daemon, or an editor) may change the
+ * repository between two commands: before each command the state kept by the daemon is checked
+ * against the files (see Repository.refresh()): the index and the refs are kept while their files
+ * are unchanged (size, times and inode), the working files are read by every command, and the
+ * commits are kept as they never change. The daemon stops with "daemon stop",
+ * or soon after its socket is deleted (the .gitlet directory was deleted).
+ */
+public class Daemon {
+    private static final File SOCKET = Repository.DAEMON_SOCKET;
+
+    private static final byte EXIT = 0;
+    private static final byte STDOUT = 1;
+    private static final byte STDERR = 2;
+    /** how often the daemon checks that its socket still exists, when no command comes */
+    private static final long CHECK_INTERVAL_MILLIS = 10_000;
+    /** the time a client has to send its request: a client which stalls is dropped */
+    private static final long REQUEST_TIMEOUT_MILLIS = 5_000;
+    /** the length of a request at most, the arguments of a command */
+    private static final int MAX_REQUEST_LENGTH = 1024 * 1024;
+
+    private Daemon() {
+    }
+
+    /**
+     * serve the commands of the repository until "daemon stop"
+     * @param repo
+     */
+    public static void serve(Repository repo) {
+        repo.isInitialized();
+        if (forward(new String[]{"daemon", "ping"}) != null) {
+            throw new GitletException(DAEMON_ALREADY_RUNNING_MESSAGE);
+        }
+        try {
+            // the socket of a daemon which did not stop
+            Files.deleteIfExists(SOCKET.toPath());
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+             Selector selector = Selector.open()) {
+            server.bind(UnixDomainSocketAddress.of(SOCKET.toPath()));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            System.out.println("Serving " + Repository.CWD.getPath());
+            boolean serving = true;
+            while (serving && SOCKET.exists()) {
+                selector.select(CHECK_INTERVAL_MILLIS);
+                selector.selectedKeys().clear();
+                SocketChannel client = server.accept();
+                if (client == null) {
+                    continue;
+                }
+                try (client) {
+                    String[] args = readRequest(client);
+                    if (args == null) {
+                        // the client stalled, it must not hold up the next ones
+                        continue;
+                    }
+                    client.configureBlocking(true);
+                    DataOutputStream out = new DataOutputStream(
+                            new BufferedOutputStream(Channels.newOutputStream(client)));
+                    int exitCode = 0;
+                    if (args.length == 2 && args[0].equals("daemon")) {
+                        // "daemon ping" checks that the daemon is running
+                        serving = !args[1].equals("stop");
+                    } else if (args.length > 0) {
+                        exitCode = run(repo, args, out);
+                    }
+                    out.writeByte(EXIT);
+                    out.writeInt(exitCode);
+                    out.flush();
+                    if (exitCode != 0) {
+                        // the command failed, the state it left may be inconsistent
+                        repo.close();
+                        repo = new Repository();
+                    }
+                } catch (IOException e) {
+                    // the client went away, the next one is served
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        } finally {
+            repo.close();
+            SOCKET.delete();
+        }
+    }
+
+    /**
+     * read the request of a client, which has REQUEST_TIMEOUT_MILLIS to send it whole
+     * @param client
+     * @return the arguments of the command, or null if the request did not come in time
+     * @throws IOException if the client went away or the request is not valid
+     */
+    private static String[] readRequest(SocketChannel client) throws IOException {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        long deadline = System.currentTimeMillis() + REQUEST_TIMEOUT_MILLIS;
+        // the selector is closed before the client is made blocking again, which unregisters it
+        try (Selector selector = Selector.open()) {
+            client.configureBlocking(false);
+            client.register(selector, SelectionKey.OP_READ);
+            while (true) {
+                String[] args = parseRequest(request.toByteArray());
+                if (args != null) {
+                    return args;
+                }
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0 || request.size() > MAX_REQUEST_LENGTH) {
+                    return null;
+                }
+                selector.select(left);
+                selector.selectedKeys().clear();
+                buffer.clear();
+                int length = client.read(buffer);
+                if (length < 0) {
+                    throw new EOFException();
+                }
+                request.write(buffer.array(), 0, length);
+            }
+        }
+    }
+
+    /**
+     * @param bytes the bytes of the request received so far
+     * @return the arguments of the command, or null if the request is not complete yet
+     * @throws IOException if the request is not valid
+     */
+    private static String[] parseRequest(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        try {
+            int count = in.readInt();
+            if (count < 0 || count > MAX_REQUEST_LENGTH / 2) {
+                throw new IOException("invalid request");
+            }
+            String[] args = new String[count];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = in.readUTF();
+            }
+            return args;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * run the command with its output sent to the client
+     * @return the exit code of the command, 1 if it threw an exception like the JVM
+     */
+    private static int run(Repository repo, String[] args, DataOutputStream out) {
+        PrintStream systemOut = System.out;
+        PrintStream systemErr = System.err;
+        PrintStream clientOut = new PrintStream(new FrameOutputStream(out, STDOUT), true);
+        PrintStream clientErr = new PrintStream(new FrameOutputStream(out, STDERR), true);
+        System.setOut(clientOut);
+        System.setErr(clientErr);
+        try {
+            repo.refresh();
+            Main.run(repo, args);
+            return 0;
+        } catch (ExitException e) {
+            return 0;
+        } catch (RuntimeException | Error e) {
+            clientErr.print("Exception in thread \"main\" ");
+            e.printStackTrace(clientErr);
+            return 1;
+        } finally {
+            clientOut.flush();
+            clientErr.flush();
+            System.setOut(systemOut);
+            System.setErr(systemErr);
+        }
+    }
+
+    /**
+     * stop the daemon of the repository
+     */
+    public static void stop() {
+        if (forward(new String[]{"daemon", "stop"}) == null) {
+            throw new GitletException(NO_DAEMON_RUNNING_MESSAGE);
+        }
+    }
+
+    /**
+     * run the command in the daemon, printing its output
+     * @param args
+     * @return the exit code of the command, or null if no daemon is running
+     */
+    public static Integer forward(String[] args) {
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(SOCKET.toPath()));
+        } catch (IOException e) {
+            return null;
+        }
+        try (channel) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeInt(args.length);
+            for (String arg : args) {
+                out.writeUTF(arg);
+            }
+            out.flush();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            while (true) {
+                byte kind = in.readByte();
+                if (kind == EXIT) {
+                    System.out.flush();
+                    System.err.flush();
+                    return in.readInt();
+                }
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                (kind == STDOUT ? System.out : System.err).write(bytes);
+            }
+        } catch (EOFException e) {
+            throw new GitletException(DAEMON_STOPPED_MESSAGE);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * writes the bytes written to it as frames of the response
+     */
+    private static class FrameOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte kind;
+
+        FrameOutputStream(DataOutputStream out, byte kind) {
+            this.out = out;
+            this.kind = kind;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.writeByte(kind);
+            out.writeInt(len);
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A delta rebuilds a target content from a base content, like the deltas of git packs:
+ *   [target length][instruction]...
+ * where an instruction is either
+ *   [INSERT][length][bytes]    the bytes, which are not in the base
+ *   [COPY][offset][length]     a range of the base
+ * and the numbers are written as varints (7 bits per byte, the high bit set if more bytes follow).
+ *
+ * The matches are found by indexing the blocks of the base at every BLOCK bytes, and looking up
+ * the rolling hash of the target at every byte. A match is then extended in both directions.
+ */
+public class Delta {
+    private static final int BLOCK = 16;
+    private static final int PRIME = 31;
+    /** PRIME ^ (BLOCK - 1), to remove the first byte from the rolling hash */
+    private static final int POWER;
+    private static final byte INSERT = 0;
+    private static final byte COPY = 1;
+
+    static {
+        int power = 1;
+        for (int i = 1; i < BLOCK; i++) {
+            power *= PRIME;
+        }
+        POWER = power;
+    }
+
+    private Delta() {
+    }
+
+    /**
+     * create the delta from base to target
+     * @param base
+     * @param target
+     * @return the delta, or null if it is not smaller than half of the target
+     */
+    public static byte[] create(byte[] base, byte[] target) {
+        if (base.length < BLOCK || target.length < BLOCK) {
+            return null;
+        }
+        Map<Integer, Integer> blocks = new HashMap<>();
+        for (int i = 0; i + BLOCK <= base.length; i += BLOCK) {
+            blocks.putIfAbsent(hash(base, i), i);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarint(out, target.length);
+        int insertStart = 0;
+        int i = 0;
+        int h = hash(target, 0);
+        while (i + BLOCK <= target.length) {
+            Integer j = blocks.get(h);
+            if (j != null && Arrays.equals(base, j, j + BLOCK, target, i, i + BLOCK)) {
+                int start = i;
+                int baseStart = j;
+                while (start > insertStart && baseStart > 0 && target[start - 1] == base[baseStart - 1]) {
+                    start--;
+                    baseStart--;
+                }
+                int end = i + BLOCK;
+                int baseEnd = j + BLOCK;
+                while (end < target.length && baseEnd < base.length && target[end] == base[baseEnd]) {
+                    end++;
+                    baseEnd++;
+                }
+                writeInsert(out, target, insertStart, start);
+                out.write(COPY);
+                writeVarint(out, baseStart);
+                writeVarint(out, end - start);
+                i = end;
+                insertStart = end;
+                if (i + BLOCK <= target.length) {
+                    h = hash(target, i);
+                }
+                continue;
+            }
+            if (i + BLOCK < target.length) {
+                h = (h - (target[i] & 0xff) * POWER) * PRIME + (target[i + BLOCK] & 0xff);
+            }
+            i++;
+        }
+        writeInsert(out, target, insertStart, target.length);
+        if (out.size() > target.length / 2) {
+            return null;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * rebuild the target from the base and the delta
+     * @param base
+     * @param delta
+     * @return
+     */
+    public static byte[] apply(byte[] base, byte[] delta) {
+        int[] position = {0};
+        byte[] target = new byte[readVarint(delta, position)];
+        int length = 0;
+        while (position[0] < delta.length) {
+            byte op = delta[position[0]++];
+            if (op == INSERT) {
+                int n = readVarint(delta, position);
+                System.arraycopy(delta, position[0], target, length, n);
+                position[0] += n;
+                length += n;
+            } else if (op == COPY) {
+                int offset = readVarint(delta, position);
+                int n = readVarint(delta, position);
+                System.arraycopy(base, offset, target, length, n);
+                length += n;
+            } else {
+                throw new IllegalArgumentException("corrupt delta");
+            }
+        }
+        if (length != target.length) {
+            throw new IllegalArgumentException("corrupt delta");
+        }
+        return target;
+    }
+
+    private static int hash(byte[] data, int start) {
+        int h = 0;
+        for (int i = start; i < start + BLOCK; i++) {
+            h = h * PRIME + (data[i] & 0xff);
+        }
+        return h;
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] data, int start, int end) {
+        if (start < end) {
+            out.write(INSERT);
+            writeVarint(out, end - start);
+            out.write(data, start, end - start);
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(byte[] data, int[] position) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[position[0]++];
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,241 @@
+package gitlet;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Prints the files that differ between two trees (see Tree.diff) for the diff command: as a unified
+ * diff with 3 lines of context, like "git diff", or as the number of lines inserted and deleted in
+ * each file, like "git diff --stat". The lines are diffed by LineDiff, as ranges of bytes and with
+ * a bounded cost, like the line merge. The binary files (see LineDiff.isBinary), and the files
+ * longer than LineMerge.MAX_LENGTH, are only reported as different.
+ */
+public class DiffFormatter {
+    private static final int CONTEXT = 3;
+    /** the width of the bars of --stat, they are scaled down to fit */
+    private static final int STAT_WIDTH = 50;
+    private static final String NO_NEWLINE = "\\ No newline at end of file\n";
+
+    private final PrintStream out;
+    /** the changes of the files, printed by printStat() */
+    private final List<FileChanges> stats = new ArrayList<>();
+
+    public DiffFormatter(PrintStream out) {
+        this.out = out;
+    }
+
+    /**
+     * print the unified diff of a file
+     * @param path
+     * @param fromSha1 the sha1 of the file in the first tree, null if it was added
+     * @param toSha1 the sha1 of the file in the second tree, null if it was deleted
+     */
+    public void printPatch(String path, String fromSha1, String toSha1) {
+        out.println("diff --git a/" + path + " b/" + path);
+        if (fromSha1 == null) {
+            out.println("new file");
+        } else if (toSha1 == null) {
+            out.println("deleted file");
+        }
+        out.println("index " + abbreviate(fromSha1) + ".." + abbreviate(toSha1));
+        String fromName = fromSha1 == null ? "/dev/null" : "a/" + path;
+        String toName = toSha1 == null ? "/dev/null" : "b/" + path;
+        if (LineMerge.isTooLong(fromSha1) || LineMerge.isTooLong(toSha1)) {
+            out.println("Files " + fromName + " and " + toName + " differ");
+            return;
+        }
+        Lines a = new Lines(read(fromSha1));
+        Lines b = new Lines(read(toSha1));
+        if (LineDiff.isBinary(a.content) || LineDiff.isBinary(b.content)) {
+            out.println("Binary files " + fromName + " and " + toName + " differ");
+            return;
+        }
+        out.println("--- " + fromName);
+        out.println("+++ " + toName);
+        List<LineDiff.Edit> edits = diff(a, b);
+        int first = 0;
+        while (first < edits.size()) {
+            // the edits whose contexts overlap make one hunk
+            int last = first;
+            while (last + 1 < edits.size() && edits.get(last + 1).aStart - edits.get(last).aEnd <= 2 * CONTEXT) {
+                last++;
+            }
+            printHunk(a, b, edits.subList(first, last + 1));
+            first = last + 1;
+        }
+    }
+
+    private void printHunk(Lines a, Lines b, List<LineDiff.Edit> edits) {
+        LineDiff.Edit firstEdit = edits.get(0);
+        LineDiff.Edit lastEdit = edits.get(edits.size() - 1);
+        int aStart = Math.max(0, firstEdit.aStart - CONTEXT);
+        int bStart = firstEdit.bStart - (firstEdit.aStart - aStart);
+        int aEnd = Math.min(a.size(), lastEdit.aEnd + CONTEXT);
+        int bEnd = lastEdit.bEnd + (aEnd - lastEdit.aEnd);
+        out.println("@@ -" + range(aStart, aEnd) + " +" + range(bStart, bEnd) + " @@");
+        int i = aStart;
+        for (LineDiff.Edit edit : edits) {
+            for (; i < edit.aStart; i++) {
+                printLine(' ', a, i);
+            }
+            for (int j = edit.aStart; j < edit.aEnd; j++) {
+                printLine('-', a, j);
+            }
+            for (int j = edit.bStart; j < edit.bEnd; j++) {
+                printLine('+', b, j);
+            }
+            i = edit.aEnd;
+        }
+        for (; i < aEnd; i++) {
+            printLine(' ', a, i);
+        }
+    }
+
+    /**
+     * such as "3,5" for 5 lines from the line 3, the line before for no line
+     */
+    private static String range(int start, int end) {
+        if (end - start == 1) {
+            return String.valueOf(start + 1);
+        }
+        return (end == start ? start : start + 1) + "," + (end - start);
+    }
+
+    private void printLine(char prefix, Lines lines, int line) {
+        int start = lines.starts[line];
+        int end = lines.starts[line + 1];
+        out.print(prefix);
+        out.write(lines.content, start, end - start);
+        if (lines.content[end - 1] != '\n') {
+            out.print('\n');
+            out.print(NO_NEWLINE);
+        }
+    }
+
+    /**
+     * count the lines inserted and deleted in a file, for printStat()
+     * @param path
+     * @param fromSha1 the sha1 of the file in the first tree, null if it was added
+     * @param toSha1 the sha1 of the file in the second tree, null if it was deleted
+     */
+    public void addStat(String path, String fromSha1, String toSha1) {
+        if (LineMerge.isTooLong(fromSha1) || LineMerge.isTooLong(toSha1)) {
+            stats.add(new FileChanges(path, -1, -1));
+            return;
+        }
+        Lines a = new Lines(read(fromSha1));
+        Lines b = new Lines(read(toSha1));
+        if (LineDiff.isBinary(a.content) || LineDiff.isBinary(b.content)) {
+            stats.add(new FileChanges(path, -1, -1));
+            return;
+        }
+        int insertions = 0;
+        int deletions = 0;
+        for (LineDiff.Edit edit : diff(a, b)) {
+            insertions += edit.bEnd - edit.bStart;
+            deletions += edit.aEnd - edit.aStart;
+        }
+        stats.add(new FileChanges(path, insertions, deletions));
+    }
+
+    /**
+     * print the files counted by addStat(), and the totals, nothing if no file changed
+     */
+    public void printStat() {
+        if (stats.isEmpty()) {
+            return;
+        }
+        int pathWidth = 0;
+        int maxChanges = 0;
+        int insertions = 0;
+        int deletions = 0;
+        for (FileChanges stat : stats) {
+            pathWidth = Math.max(pathWidth, stat.path.length());
+            maxChanges = Math.max(maxChanges, stat.insertions + stat.deletions);
+            insertions += Math.max(stat.insertions, 0);
+            deletions += Math.max(stat.deletions, 0);
+        }
+        int countWidth = String.valueOf(maxChanges).length();
+        for (FileChanges stat : stats) {
+            String path = stat.path + " ".repeat(pathWidth - stat.path.length());
+            if (stat.insertions < 0) {
+                out.println(" " + path + " | " + "Bin");
+                continue;
+            }
+            int changes = stat.insertions + stat.deletions;
+            int plus = stat.insertions;
+            int minus = stat.deletions;
+            if (maxChanges > STAT_WIDTH) {
+                // scaled, a change is shown by one character at least
+                plus = scale(plus, maxChanges);
+                minus = scale(minus, maxChanges);
+            }
+            String count = String.valueOf(changes);
+            out.println(" " + path + " | " + " ".repeat(countWidth - count.length()) + count + " "
+                    + "+".repeat(plus) + "-".repeat(minus));
+        }
+        List<String> totals = new ArrayList<>();
+        totals.add(plural(stats.size(), "file") + " changed");
+        if (insertions > 0 || deletions == 0) {
+            totals.add(plural(insertions, "insertion") + "(+)");
+        }
+        if (deletions > 0 || insertions == 0) {
+            totals.add(plural(deletions, "deletion") + "(-)");
+        }
+        out.println(" " + String.join(", ", totals));
+    }
+
+    private static int scale(int count, int maxChanges) {
+        return count == 0 ? 0 : Math.max(1, (int) ((long) count * STAT_WIDTH / maxChanges));
+    }
+
+    private static String plural(int count, String noun) {
+        return count + " " + noun + (count == 1 ? "" : "s");
+    }
+
+    private static String abbreviate(String sha1) {
+        return sha1 == null ? "0000000" : sha1.substring(0, 7);
+    }
+
+    private static byte[] read(String sha1) {
+        return sha1 == null ? new byte[0] : ObjectStore.readBlob(sha1);
+    }
+
+    private static List<LineDiff.Edit> diff(Lines a, Lines b) {
+        int[][] numbers = LineDiff.number(new byte[][]{a.content, b.content}, new int[][]{a.starts, b.starts});
+        return LineDiff.diff(numbers[0], numbers[1], LineDiff.MAX_COST);
+    }
+
+    /**
+     * a content and the starts of its lines (see LineDiff.lineStarts)
+     */
+    private static class Lines {
+        private final byte[] content;
+        private final int[] starts;
+
+        Lines(byte[] content) {
+            this.content = content;
+            this.starts = LineDiff.lineStarts(content);
+        }
+
+        int size() {
+            return starts.length - 1;
+        }
+    }
+
+    /**
+     * the lines inserted and deleted in a file, -1 for a binary or a too long file
+     */
+    private static class FileChanges {
+        private final String path;
+        private final int insertions;
+        private final int deletions;
+
+        FileChanges(String path, int insertions, int deletions) {
+            this.path = path;
+            this.insertions = insertions;
+            this.deletions = deletions;
+        }
+    }
+}
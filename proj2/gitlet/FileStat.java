@@ -0,0 +1,123 @@
+package gitlet;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The stat information (size, mtime, ctime, inode) of a working file,
+ * like the one git keeps for every entry of its index.
+ * If none of them changed, the content of the file did not change either.
+ */
+public class FileStat implements Serializable {
+    private static final long serialVersionUID = 5L;
+
+    private final long size;
+    private final long mtime;
+    private final long ctime;
+    private final long inode;
+
+    private FileStat(long size, long mtime, long ctime, long inode) {
+        this.size = size;
+        this.mtime = mtime;
+        this.ctime = ctime;
+        this.inode = inode;
+    }
+
+    /**
+     * stat the file, use the unix view when the platform supports it
+     * @param file
+     * @return the stat of the file, or null if it is not a normal file
+     */
+    public static FileStat of(File file) {
+        Path path = file.toPath();
+        try {
+            Map<String, Object> attrs = Files.readAttributes(path,
+                    "unix:size,lastModifiedTime,ctime,ino,isRegularFile", LinkOption.NOFOLLOW_LINKS);
+            if (!(Boolean) attrs.get("isRegularFile")) {
+                return null;
+            }
+            return new FileStat((Long) attrs.get("size"), toNanos((FileTime) attrs.get("lastModifiedTime")),
+                    toNanos((FileTime) attrs.get("ctime")), (Long) attrs.get("ino"));
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return ofBasic(path);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static FileStat ofBasic(Path path) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class,
+                    LinkOption.NOFOLLOW_LINKS);
+            if (!attrs.isRegularFile()) {
+                return null;
+            }
+            Object key = attrs.fileKey();
+            long inode = key == null ? 0 : key.hashCode();
+            return new FileStat(attrs.size(), toNanos(attrs.lastModifiedTime()),
+                    toNanos(attrs.creationTime()), inode);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static long toNanos(FileTime time) {
+        return time.to(TimeUnit.NANOSECONDS);
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * last modification time in nanoseconds since the epoch
+     * @return
+     */
+    public long getMtime() {
+        return mtime;
+    }
+
+    /**
+     * [size][mtime][ctime][inode]: 4 longs
+     * @param out
+     * @throws IOException
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeLong(size);
+        out.writeLong(mtime);
+        out.writeLong(ctime);
+        out.writeLong(inode);
+    }
+
+    public static FileStat read(DataInput in) throws IOException {
+        return new FileStat(in.readLong(), in.readLong(), in.readLong(), in.readLong());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof FileStat)) {
+            return false;
+        }
+        FileStat other = (FileStat) o;
+        return size == other.size && mtime == other.mtime
+                && ctime == other.ctime && inode == other.inode;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(size) * 31 + Long.hashCode(mtime);
+    }
+}
@@ -1,16 +1,86 @@
 package gitlet;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
+/**
+ * The staging area and the stat cache of the working files, in .gitlet/index:
+ *   [magic "GIND"][version][base length: int][base][journal]
+ * The base is the index when it was last compacted, each part sorted by path:
+ *   [staged count: int]([path: UTF][sha1: 20 bytes])...
+ *   [removed count: int]([path: UTF])...
+ *   [stat count: int]([path: UTF][stat: 4 longs][sha1: 20 bytes][hashed at: long])...
+ * and the journal the changes made since, in the order they were made:
+ *   [change: byte][path: UTF][sha1: 20 bytes, for STAGE][stat, sha1 and hashed at, for STAT]...
+ *
+ * A command appends the changes it made to the journal and syncs them (staging a file appends
+ * a few bytes) instead of writing the whole index again. When the journal has more changes than
+ * MIN_JOURNAL and than a quarter of the entries, the index is compacted: written to a temporary
+ * file, synced and moved to .gitlet/index atomically, and the directory synced, so that a crash
+ * leaves the old index or the new one. A change not written completely (the command was
+ * interrupted) is dropped.
+ *
+ * An index written by Java serialization (by an older version) is read, and compacted the first
+ * time it changes.
+ */
 public class Index implements Serializable {
     private static final long serialVersionUID = 2341433L;
+    private static final byte[] MAGIC = "GIND".getBytes(StandardCharsets.US_ASCII);
+    private static final byte VERSION = 1;
+    private static final int HEADER_LENGTH = 9;
+    /** the journal is compacted when it has more changes than this, and than a quarter of the entries */
+    private static final int MIN_JOURNAL = 256;
+
+    /** the changes of the journal */
+    private static final byte STAGE = 'A';
+    private static final byte UNSTAGE = 'a';
+    private static final byte REMOVE = 'R';
+    private static final byte UNREMOVE = 'r';
+    private static final byte CLEAR = 'C';
+    private static final byte STAT = 'S';
+    private static final byte DROP_STAT = 'D';
+
     private Map<String, String> stagedFilesForAddition; // Map<FilePath, BlobSha1Hash>
     private List<String> stagedFilesForRemoval;
+    // Map<FilePath, StatEntry>, the stat cache of the working files
+    private Map<String, StatEntry> statCache;
+
+    /** the index file, set by read() */
+    private transient File file;
+    /** the stat of the index file when it was read or last written, null if it did not exist */
+    private transient FileStat fileStat;
+    /** the end of the journal in the file, 0 if the file has no base (empty, or written by Java serialization) */
+    private transient long journalEnd;
+    /** the number of changes in the journal of the file */
+    private transient int journalCount;
+    /** the changes made since the index was read or written, appended by write() */
+    private transient ByteArrayOutputStream changes;
+    private transient int changeCount;
+
+    /**
+     * a file whose mtime is this close to the time it was hashed may be modified again
+     * without changing its stat ("racy" file), so its cached sha1 can not be trusted
+     */
+    private static final long RACY_WINDOW_NANOS = 2_000_000_000L;
 
     public Index() {
         stagedFilesForAddition = new HashMap<>();
         stagedFilesForRemoval = new ArrayList<>();
+        statCache = new HashMap<>();
     }
 
 
@@ -21,6 +91,7 @@ public class Index implements Serializable {
      */
     public void addFileForAddition(String file, String sha1){
         stagedFilesForAddition.put(file, sha1);
+        record(STAGE, file, sha1, null);
     }
 
     /**
@@ -73,8 +144,12 @@ public class Index implements Serializable {
      * clear inndex
      */
     public void clear(){
+        if (isClean()){
+            return;
+        }
         stagedFilesForAddition.clear();
         stagedFilesForRemoval.clear();
+        record(CLEAR, "", null, null);
     }
 
     /**
@@ -83,14 +158,19 @@ public class Index implements Serializable {
      */
     public void addFileForRemoval(String file){
         stagedFilesForRemoval.add(file);
+        record(REMOVE, file, null, null);
     }
 
     public void removeFileForRemoval(String file){
-        stagedFilesForRemoval.remove(file);
+        if (stagedFilesForRemoval.remove(file)){
+            record(UNREMOVE, file, null, null);
+        }
     }
 
     public void removeFileforAddition(String file){
-        stagedFilesForAddition.remove(file);
+        if (stagedFilesForAddition.remove(file) != null){
+            record(UNSTAGE, file, null, null);
+        }
     }
 
     public List<String> getStagedFilesForRemoval(){
@@ -98,6 +178,68 @@ public class Index implements Serializable {
         return stagedFilesForRemoval;
     }
 
+    /**
+     * get the cached sha1 of the working file
+     * @param file
+     * @param stat the current stat of the file
+     * @return the sha1, or null if the file has to be re-hashed
+     */
+    public String getCachedSha1(String file, FileStat stat){
+        // only reads the cache, so that the files can be looked up by several threads
+        StatEntry entry = statCache == null ? null : statCache.get(file);
+        if (entry == null || stat == null || !entry.stat.equals(stat)){
+            return null;
+        }
+        if (entry.hashedAt - stat.getMtime() <= RACY_WINDOW_NANOS){
+            // racily clean, the file could have been changed in the same tick after hashing
+            return null;
+        }
+        return entry.sha1;
+    }
+
+    /**
+     * remember the sha1 of the working file together with its stat
+     * @param file
+     * @param stat the stat of the file taken before hashing it
+     * @param sha1
+     * @param hashedAt the time (nanoseconds since the epoch) at which the stat was taken
+     */
+    public void cacheSha1(String file, FileStat stat, String sha1, long hashedAt){
+        if (stat == null){
+            return;
+        }
+        StatEntry old = getStatCache().get(file);
+        if (old != null && old.stat.equals(stat) && old.sha1.equals(sha1) && old.hashedAt == hashedAt){
+            return;
+        }
+        StatEntry entry = new StatEntry(stat, sha1, hashedAt);
+        getStatCache().put(file, entry);
+        record(STAT, file, null, entry);
+    }
+
+    /**
+     * drop the cached stats of the files that are not in files
+     * @param files
+     */
+    public void retainCachedFiles(Set<String> files){
+        Iterator<String> cachedFiles = getStatCache().keySet().iterator();
+        while (cachedFiles.hasNext()){
+            String file = cachedFiles.next();
+            if (!files.contains(file)){
+                cachedFiles.remove();
+                record(DROP_STAT, file, null, null);
+            }
+        }
+    }
+
+    private Map<String, StatEntry> getStatCache(){
+        // the index written by an older version has no stat cache
+        if (statCache == null){
+            statCache = new HashMap<>();
+        }
+        return statCache;
+    }
+
     public boolean isClean(){
         if(!stagedFilesForAddition.isEmpty()){
             return false;
@@ -108,5 +250,244 @@ public class Index implements Serializable {
         return true;
     }
 
+    /**
+     * read the index file
+     * @param file
+     * @return the index, empty if the file does not exist or is empty
+     */
+    public static Index read(File file){
+        // before the content: a change made while it is read makes the index not current
+        FileStat fileStat = FileStat.of(file);
+        byte[] bytes = file.exists() ? Utils.readContents(file) : new byte[0];
+        Index index;
+        if (bytes.length == 0){
+            index = new Index();
+        }else if (bytes.length < HEADER_LENGTH || !Arrays.equals(Arrays.copyOf(bytes, MAGIC.length), MAGIC)){
+            // written by Java serialization
+            index = Utils.readObject(file, Index.class);
+        }else{
+            index = decode(bytes);
+        }
+        index.file = file;
+        index.fileStat = fileStat;
+        return index;
+    }
 
+    /**
+     * whether the index file is still the one read or written by this index (its size, times and
+     * inode did not change), and this index has no change it did not write: another process may
+     * have changed the index file, appending to it or compacting it
+     * @return
+     */
+    public boolean isCurrent(){
+        return changeCount == 0 && Objects.equals(FileStat.of(file), fileStat);
+    }
+
+    private static Index decode(byte[] bytes){
+        if (bytes[MAGIC.length] != VERSION){
+            throw new IllegalArgumentException("unknown index version " + bytes[MAGIC.length]);
+        }
+        int baseLength = ByteBuffer.wrap(bytes).getInt(MAGIC.length + 1);
+        Index index = new Index();
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, HEADER_LENGTH, baseLength));
+            for (int i = in.readInt(); i > 0; i--) {
+                index.stagedFilesForAddition.put(in.readUTF(), ObjectId.read(in).toHex());
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                index.stagedFilesForRemoval.add(in.readUTF());
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                index.statCache.put(in.readUTF(), StatEntry.read(in));
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("corrupted index: " + e.getMessage());
+        }
+        index.journalEnd = HEADER_LENGTH + baseLength;
+        ByteArrayInputStream journal = new ByteArrayInputStream(bytes, (int) index.journalEnd,
+                bytes.length - (int) index.journalEnd);
+        DataInputStream in = new DataInputStream(journal);
+        while (journal.available() > 0){
+            try {
+                index.replay(in);
+            } catch (IOException e) {
+                // the last change was not written completely, the next write overwrites it
+                break;
+            }
+            index.journalEnd = bytes.length - journal.available();
+            index.journalCount++;
+        }
+        return index;
+    }
+
+    /**
+     * apply a change of the journal, read whole before it is applied
+     */
+    private void replay(DataInputStream in) throws IOException {
+        byte change = in.readByte();
+        String path = in.readUTF();
+        switch (change) {
+            case STAGE:
+                stagedFilesForAddition.put(path, ObjectId.read(in).toHex());
+                break;
+            case UNSTAGE:
+                stagedFilesForAddition.remove(path);
+                break;
+            case REMOVE:
+                stagedFilesForRemoval.add(path);
+                break;
+            case UNREMOVE:
+                stagedFilesForRemoval.remove(path);
+                break;
+            case CLEAR:
+                stagedFilesForAddition.clear();
+                stagedFilesForRemoval.clear();
+                break;
+            case STAT:
+                statCache.put(path, StatEntry.read(in));
+                break;
+            case DROP_STAT:
+                statCache.remove(path);
+                break;
+            default:
+                throw new IOException("unknown change " + change);
+        }
+    }
+
+    /**
+     * add a change to the ones write() appends to the journal
+     */
+    private void record(byte change, String path, String sha1, StatEntry entry){
+        if (changes == null){
+            changes = new ByteArrayOutputStream();
+        }
+        try {
+            DataOutputStream out = new DataOutputStream(changes);
+            out.writeByte(change);
+            out.writeUTF(path);
+            if (sha1 != null){
+                ObjectId.fromHex(sha1).write(out);
+            }
+            if (entry != null){
+                entry.write(out);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        changeCount++;
+    }
+
+    /**
+     * persist the changes made since the index was read, appending them to the journal,
+     * or compacting the index
+     */
+    public void write(){
+        if (changeCount == 0){
+            return;
+        }
+        int entries = stagedFilesForAddition.size() + stagedFilesForRemoval.size() + getStatCache().size();
+        if (journalEnd == 0 || journalCount + changeCount > Math.max(MIN_JOURNAL, entries / 4)){
+            compact();
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            // drop a change not written completely by an interrupted command
+            channel.truncate(journalEnd);
+            ByteBuffer buffer = ByteBuffer.wrap(changes.toByteArray());
+            while (buffer.hasRemaining()){
+                channel.write(buffer, journalEnd + buffer.position());
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        journalEnd += changes.size();
+        journalCount += changeCount;
+        changes = null;
+        changeCount = 0;
+        fileStat = FileStat.of(file);
+    }
+
+    /**
+     * write the index as a base without journal to a temporary file, and move it to the index file
+     */
+    private void compact(){
+        ByteArrayOutputStream base = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(base);
+            out.writeInt(stagedFilesForAddition.size());
+            for (Map.Entry<String, String> entry : new TreeMap<>(stagedFilesForAddition).entrySet()) {
+                out.writeUTF(entry.getKey());
+                ObjectId.fromHex(entry.getValue()).write(out);
+            }
+            List<String> removed = new ArrayList<>(stagedFilesForRemoval);
+            Collections.sort(removed);
+            out.writeInt(removed.size());
+            for (String path : removed) {
+                out.writeUTF(path);
+            }
+            out.writeInt(getStatCache().size());
+            for (Map.Entry<String, StatEntry> entry : new TreeMap<>(getStatCache()).entrySet()) {
+                out.writeUTF(entry.getKey());
+                entry.getValue().write(out);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        File tmpFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tmpFile)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(base.size());
+            base.writeTo(out);
+            out.flush();
+            fileOut.getFD().sync();
+        } catch (IOException e) {
+            tmpFile.delete();
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        try {
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            tmpFile.delete();
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        Utils.syncDirectory(file.getParentFile());
+        journalEnd = HEADER_LENGTH + base.size();
+        journalCount = 0;
+        changes = null;
+        changeCount = 0;
+        fileStat = FileStat.of(file);
+    }
+
+    /**
+     * the cached stat and sha1 of a working file
+     */
+    private static class StatEntry implements Serializable {
+        private static final long serialVersionUID = 6L;
+        private final FileStat stat;
+        private final String sha1;
+        private final long hashedAt;
+
+        StatEntry(FileStat stat, String sha1, long hashedAt) {
+            this.stat = stat;
+            this.sha1 = sha1;
+            this.hashedAt = hashedAt;
+        }
+
+        /**
+         * [stat][sha1: 20 bytes][hashed at: long]
+         */
+        void write(DataOutputStream out) throws IOException {
+            stat.write(out);
+            ObjectId.fromHex(sha1).write(out);
+            out.writeLong(hashedAt);
+        }
+
+        static StatEntry read(DataInputStream in) throws IOException {
+            return new StatEntry(FileStat.read(in), ObjectId.read(in).toHex(), in.readLong());
+        }
+    }
 }
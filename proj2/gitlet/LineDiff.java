@@ -0,0 +1,277 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The differences between the lines of two contents, as the shortest list of edits that turn the
+ * lines of a into the lines of b (Myers, "An O(ND) Difference Algorithm and Its Variations").
+ * The lines common to the start and to the end are skipped first, then the middle snake of the
+ * rest is found by searching from both ends at once, and both sides of it are diffed recursively:
+ * the memory used is linear in the number of lines, the time grows with their number times the
+ * number of differences. It can be bounded by a cost: past it, the ranges left are replaced whole,
+ * a correct but longer list of edits.
+ *
+ * The lines are compared as ints, each distinct line of the contents getting its own. A line keeps
+ * its terminating '\n'. The lines are the ranges of bytes between the starts of the lines, which
+ * are numbered without a String for each line.
+ */
+public class LineDiff {
+    /** the cost of the diffs of the diff command and of the line merge, about a second of search */
+    public static final long MAX_COST = 50_000_000L;
+
+    private LineDiff() {
+    }
+
+    /**
+     * the lines [aStart, aEnd) of a replaced by the lines [bStart, bEnd) of b,
+     * an insertion when aStart == aEnd, a deletion when bStart == bEnd
+     */
+    public static class Edit {
+        public final int aStart;
+        public final int aEnd;
+        public final int bStart;
+        public final int bEnd;
+
+        Edit(int aStart, int aEnd, int bStart, int bEnd) {
+            this.aStart = aStart;
+            this.aEnd = aEnd;
+            this.bStart = bStart;
+            this.bEnd = bEnd;
+        }
+    }
+
+    /**
+     * @param content
+     * @return the offsets of the starts of the lines, then the length of the content:
+     *         the line i is [starts[i], starts[i + 1])
+     */
+    public static int[] lineStarts(byte[] content) {
+        int count = 0;
+        for (byte b : content) {
+            if (b == '\n') {
+                count++;
+            }
+        }
+        boolean lastLine = content.length > 0 && content[content.length - 1] != '\n';
+        int[] starts = new int[count + (lastLine ? 2 : 1)];
+        int line = 1;
+        for (int i = 0; i < content.length; i++) {
+            if (content[i] == '\n' && i + 1 < content.length) {
+                starts[line++] = i + 1;
+            }
+        }
+        starts[starts.length - 1] = content.length;
+        return starts;
+    }
+
+    /**
+     * @return whether the content looks binary: it has a NUL byte in its first 8000 bytes, like git
+     */
+    public static boolean isBinary(byte[] content) {
+        for (int i = 0; i < Math.min(content.length, 8000); i++) {
+            if (content[i] == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * number the lines of the contents, the same line gets the same number in all of them.
+     * The lines are kept in an open addressing table of ints, which refer to their first occurrence.
+     * @param contents
+     * @param starts the starts of the lines of each content, see lineStarts
+     * @return the numbers of the lines of each content
+     */
+    public static int[][] number(byte[][] contents, int[][] starts) {
+        int lines = 0;
+        for (int[] contentStarts : starts) {
+            lines += contentStarts.length - 1;
+        }
+        int capacity = Integer.highestOneBit(Math.max(lines, 8) * 2 - 1) << 1;
+        // the content and the line of the first occurrence of each number, and the slots of the numbers
+        int[] firstContent = new int[lines];
+        int[] firstLine = new int[lines];
+        int[] slots = new int[capacity];
+        Arrays.fill(slots, -1);
+        int count = 0;
+        int[][] result = new int[contents.length][];
+        for (int i = 0; i < contents.length; i++) {
+            byte[] content = contents[i];
+            result[i] = new int[starts[i].length - 1];
+            for (int j = 0; j < result[i].length; j++) {
+                int start = starts[i][j];
+                int end = starts[i][j + 1];
+                int slot = hash(content, start, end) & (capacity - 1);
+                while (true) {
+                    int number = slots[slot];
+                    if (number == -1) {
+                        firstContent[count] = i;
+                        firstLine[count] = j;
+                        slots[slot] = count;
+                        result[i][j] = count++;
+                        break;
+                    }
+                    int[] otherStarts = starts[firstContent[number]];
+                    int otherLine = firstLine[number];
+                    if (Arrays.equals(content, start, end, contents[firstContent[number]],
+                            otherStarts[otherLine], otherStarts[otherLine + 1])) {
+                        result[i][j] = number;
+                        break;
+                    }
+                    slot = (slot + 1) & (capacity - 1);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static int hash(byte[] content, int start, int end) {
+        int hash = 1;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + content[i];
+        }
+        // spread the high bits to the slots
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * diff two sequences of numbered lines, in a bounded time
+     * @param a
+     * @param b
+     * @param maxCost the number of diagonals the searches may extend, about the time taken; past it
+     *                the ranges left are replaced whole
+     * @return the edits, in the order of the lines
+     */
+    public static List<Edit> diff(int[] a, int[] b, long maxCost) {
+        List<Edit> edits = new ArrayList<>();
+        diff(a, 0, a.length, b, 0, b.length, edits, new long[]{maxCost});
+        return edits;
+    }
+
+    /**
+     * @param cost the cost left, shared by the recursive calls
+     */
+    private static void diff(int[] a, int aStart, int aEnd, int[] b, int bStart, int bEnd, List<Edit> edits,
+                             long[] cost) {
+        while (aStart < aEnd && bStart < bEnd && a[aStart] == b[bStart]) {
+            aStart++;
+            bStart++;
+        }
+        while (aStart < aEnd && bStart < bEnd && a[aEnd - 1] == b[bEnd - 1]) {
+            aEnd--;
+            bEnd--;
+        }
+        if (aStart == aEnd || bStart == bEnd) {
+            if (aStart < aEnd || bStart < bEnd) {
+                add(edits, aStart, aEnd, bStart, bEnd);
+            }
+            return;
+        }
+        int[] split = middleSnake(a, aStart, aEnd, b, bStart, bEnd, cost);
+        if (split == null) {
+            add(edits, aStart, aEnd, bStart, bEnd);
+            return;
+        }
+        diff(a, aStart, split[0], b, bStart, split[1], edits, cost);
+        diff(a, split[0], aEnd, b, split[1], bEnd, edits, cost);
+    }
+
+    /**
+     * add an edit, merging it with the previous one if they touch
+     */
+    private static void add(List<Edit> edits, int aStart, int aEnd, int bStart, int bEnd) {
+        if (!edits.isEmpty()) {
+            Edit last = edits.get(edits.size() - 1);
+            if (last.aEnd == aStart && last.bEnd == bStart) {
+                edits.set(edits.size() - 1, new Edit(last.aStart, aEnd, last.bStart, bEnd));
+                return;
+            }
+        }
+        edits.add(new Edit(aStart, aEnd, bStart, bEnd));
+    }
+
+    /**
+     * find where the forward and the backward searches of the shortest edit path meet
+     * (both ranges are not empty, and differ at their first and at their last lines)
+     * @return {x, y}: the path goes through the line x of a and the line y of b,
+     *         or null if the ranges have no line in common, or the cost left is spent
+     */
+    private static int[] middleSnake(int[] a, int aStart, int aEnd, int[] b, int bStart, int bEnd, long[] cost) {
+        int n = aEnd - aStart;
+        int m = bEnd - bStart;
+        int max = (n + m + 1) / 2;
+        int offset = max;
+        int length = 2 * max + 2;
+        // the furthest x reached on each diagonal k = x - y, from the start and from the end
+        int[] forward = new int[length];
+        int[] backward = new int[length];
+        Arrays.fill(forward, -1);
+        Arrays.fill(backward, -1);
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        int delta = n - m;
+        // the paths meet on a forward step when delta is odd, on a backward step when it is even
+        boolean front = (delta & 1) != 0;
+        int kForwardStart = 0;
+        int kForwardEnd = 0;
+        int kBackwardStart = 0;
+        int kBackwardEnd = 0;
+        for (int d = 0; d < max; d++) {
+            cost[0] -= 2 * d + 2;
+            if (cost[0] < 0) {
+                return null;
+            }
+            for (int k = -d + kForwardStart; k <= d - kForwardEnd; k += 2) {
+                int kOffset = offset + k;
+                int x = k == -d || k != d && forward[kOffset - 1] < forward[kOffset + 1]
+                        ? forward[kOffset + 1] : forward[kOffset - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[aStart + x] == b[bStart + y]) {
+                    x++;
+                    y++;
+                }
+                forward[kOffset] = x;
+                if (x > n) {
+                    kForwardEnd += 2;
+                } else if (y > m) {
+                    kForwardStart += 2;
+                } else if (front) {
+                    int backwardOffset = offset + delta - k;
+                    if (backwardOffset >= 0 && backwardOffset < length && backward[backwardOffset] != -1
+                            && x >= n - backward[backwardOffset]) {
+                        return new int[]{aStart + x, bStart + y};
+                    }
+                }
+            }
+            for (int k = -d + kBackwardStart; k <= d - kBackwardEnd; k += 2) {
+                int kOffset = offset + k;
+                int x = k == -d || k != d && backward[kOffset - 1] < backward[kOffset + 1]
+                        ? backward[kOffset + 1] : backward[kOffset - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[aEnd - x - 1] == b[bEnd - y - 1]) {
+                    x++;
+                    y++;
+                }
+                backward[kOffset] = x;
+                if (x > n) {
+                    kBackwardEnd += 2;
+                } else if (y > m) {
+                    kBackwardStart += 2;
+                } else if (!front) {
+                    int forwardOffset = offset + delta - k;
+                    if (forwardOffset >= 0 && forwardOffset < length && forward[forwardOffset] != -1) {
+                        int forwardX = forward[forwardOffset];
+                        int forwardY = offset + forwardX - forwardOffset;
+                        if (forwardX >= n - x) {
+                            return new int[]{aStart + forwardX, bStart + forwardY};
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+}
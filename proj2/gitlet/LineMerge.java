@@ -0,0 +1,234 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The three way merge of the lines of a file, like diff3: the lines of the split point are diffed
+ * (see LineDiff) with the lines of the head and with the lines of the other branch, and the changes
+ * of both sides are applied. The changes of the two sides which overlap or touch make a chunk, which
+ * is a conflict unless both sides changed it to the same lines:
+ *   <<<<<<< HEAD
+ *   the lines of the head
+ *   =======
+ *   the lines of the other branch
+ *   >>>>>>>
+ *
+ * The lines are numbered as ranges of bytes, the memory used is a few ints per line besides the
+ * contents. The diffs are bounded by LineDiff.MAX_COST, past which they replace the ranges left
+ * whole: they are not the shortest, and make larger conflicts, but a merge ends in about a second.
+ * The contents longer than MAX_LENGTH, or binary (see LineDiff.isBinary), are not merged by lines:
+ * they are one conflict (see writeConflict), with the same markers, streamed from the blobs.
+ */
+public class LineMerge {
+    public static final int MAX_LENGTH = 64 * 1024 * 1024;
+    private static final byte[] HEAD_MARKER = "<<<<<<< HEAD\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SEPARATOR = "=======\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] END_MARKER = ">>>>>>>\n".getBytes(StandardCharsets.UTF_8);
+
+    private LineMerge() {
+    }
+
+    /**
+     * the merged content, and its number of conflicts
+     */
+    public static class Result {
+        public final byte[] content;
+        public final int conflicts;
+
+        Result(byte[] content, int conflicts) {
+            this.content = content;
+            this.conflicts = conflicts;
+        }
+    }
+
+    /**
+     * @param sha1 the sha1 of a blob, or null
+     * @return whether the blob is longer than MAX_LENGTH, without reading its content
+     */
+    public static boolean isTooLong(String sha1) {
+        return sha1 != null && ObjectStore.blobLength(sha1) > MAX_LENGTH;
+    }
+
+    /**
+     * @param contents
+     * @return whether the contents can be merged by lines: they are text, and not longer than MAX_LENGTH
+     */
+    public static boolean canMerge(byte[]... contents) {
+        for (byte[] content : contents) {
+            if (content.length > MAX_LENGTH || LineDiff.isBinary(content)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * merge the changes of the head and of the other branch to the split point
+     * @param splitPoint the content at the split point
+     * @param head the content in the head
+     * @param other the content in the other branch
+     * @return
+     */
+    public static Result merge(byte[] splitPoint, byte[] head, byte[] other) {
+        if (Arrays.equals(splitPoint, other) || Arrays.equals(head, other)) {
+            return new Result(head, 0);
+        }
+        if (Arrays.equals(splitPoint, head)) {
+            return new Result(other, 0);
+        }
+        byte[][] contents = {splitPoint, head, other};
+        int[][] starts = new int[3][];
+        for (int i = 0; i < 3; i++) {
+            starts[i] = LineDiff.lineStarts(contents[i]);
+        }
+        int[][] numbers = LineDiff.number(contents, starts);
+        List<LineDiff.Edit> headEdits = LineDiff.diff(numbers[0], numbers[1], LineDiff.MAX_COST);
+        List<LineDiff.Edit> otherEdits = LineDiff.diff(numbers[0], numbers[2], LineDiff.MAX_COST);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(head.length, other.length));
+        int conflicts = 0;
+        // the next line of the split point to copy, and the next edits of each side
+        int position = 0;
+        int h = 0;
+        int o = 0;
+        while (h < headEdits.size() || o < otherEdits.size()) {
+            int headFirst = h;
+            int otherFirst = o;
+            int chunkStart = Math.min(h < headEdits.size() ? headEdits.get(h).aStart : Integer.MAX_VALUE,
+                    o < otherEdits.size() ? otherEdits.get(o).aStart : Integer.MAX_VALUE);
+            int chunkEnd = chunkStart;
+            // the edits of a side never touch each other, the chunk grows by the edits of both sides
+            while (true) {
+                if (h < headEdits.size() && headEdits.get(h).aStart <= chunkEnd) {
+                    chunkEnd = Math.max(chunkEnd, headEdits.get(h++).aEnd);
+                } else if (o < otherEdits.size() && otherEdits.get(o).aStart <= chunkEnd) {
+                    chunkEnd = Math.max(chunkEnd, otherEdits.get(o++).aEnd);
+                } else {
+                    break;
+                }
+            }
+            write(out, splitPoint, starts[0], position, chunkStart);
+            position = chunkEnd;
+            if (h == headFirst) {
+                LineDiff.Edit first = otherEdits.get(otherFirst);
+                write(out, other, starts[2], first.bStart, otherEdits.get(o - 1).bEnd);
+                continue;
+            }
+            if (o == otherFirst) {
+                LineDiff.Edit first = headEdits.get(headFirst);
+                write(out, head, starts[1], first.bStart, headEdits.get(h - 1).bEnd);
+                continue;
+            }
+            int[] headRange = range(headEdits.subList(headFirst, h), chunkStart, chunkEnd);
+            int[] otherRange = range(otherEdits.subList(otherFirst, o), chunkStart, chunkEnd);
+            if (Arrays.equals(numbers[1], headRange[0], headRange[1], numbers[2], otherRange[0], otherRange[1])) {
+                write(out, head, starts[1], headRange[0], headRange[1]);
+                continue;
+            }
+            conflicts++;
+            out.writeBytes(HEAD_MARKER);
+            writeLines(out, head, starts[1], headRange[0], headRange[1]);
+            out.writeBytes(SEPARATOR);
+            writeLines(out, other, starts[2], otherRange[0], otherRange[1]);
+            out.writeBytes(END_MARKER);
+        }
+        write(out, splitPoint, starts[0], position, starts[0].length - 1);
+        return new Result(out.toByteArray(), conflicts);
+    }
+
+    /**
+     * write the whole contents of the blobs as one conflict, for the files which are not merged by
+     * lines. The blobs are streamed to the file (see ObjectStore.copyBlob), so the memory used
+     * does not depend on their length.
+     * @param target the file to write, created or overwritten
+     * @param headSha1 the blob in the head, null if it was deleted
+     * @param otherSha1 the blob in the other branch, null if it was deleted
+     */
+    public static void writeConflict(File target, String headSha1, String otherSha1) {
+        try (LastByteOutputStream out = new LastByteOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(target.toPath()), Blob.BUFFER_SIZE))) {
+            out.write(HEAD_MARKER);
+            writeBlob(out, headSha1);
+            out.write(SEPARATOR);
+            writeBlob(out, otherSha1);
+            out.write(END_MARKER);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * write the content of the blob after a marker and before the next one, which starts a line
+     */
+    private static void writeBlob(LastByteOutputStream out, String sha1) throws IOException {
+        if (sha1 == null) {
+            return;
+        }
+        ObjectStore.copyBlob(sha1, out);
+        // the marker before ends with a newline, an empty blob adds none
+        if (out.last != '\n') {
+            out.write('\n');
+        }
+    }
+
+    /**
+     * a stream which keeps the last byte written to it
+     */
+    private static class LastByteOutputStream extends FilterOutputStream {
+        private int last = -1;
+
+        LastByteOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            last = b & 0xff;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (len > 0) {
+                last = b[off + len - 1] & 0xff;
+            }
+        }
+    }
+
+    /**
+     * the lines of a side which replace the lines [chunkStart, chunkEnd) of the split point: the lines
+     * of the chunk out of the edits of the side are unchanged
+     */
+    private static int[] range(List<LineDiff.Edit> edits, int chunkStart, int chunkEnd) {
+        LineDiff.Edit first = edits.get(0);
+        LineDiff.Edit last = edits.get(edits.size() - 1);
+        return new int[]{first.bStart - (first.aStart - chunkStart), last.bEnd + (chunkEnd - last.aEnd)};
+    }
+
+    /**
+     * write the lines [start, end) of the content
+     */
+    private static void write(ByteArrayOutputStream out, byte[] content, int[] starts, int start, int end) {
+        out.write(content, starts[start], starts[end] - starts[start]);
+    }
+
+    /**
+     * write the lines [start, end) of the content before a marker, which starts a line
+     */
+    private static void writeLines(ByteArrayOutputStream out, byte[] content, int[] starts, int start, int end) {
+        write(out, content, starts, start, end);
+        if (end > start && content[starts[end] - 1] != '\n') {
+            out.write('\n');
+        }
+    }
+}
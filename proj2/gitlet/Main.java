@@ -1,5 +1,6 @@
 package gitlet;
 
+import gitlet.exception.ExitException;
 import gitlet.exception.GitletException;
 import java.util.Arrays;
 
@@ -17,8 +18,31 @@ public class Main {
         if (args.length == 0) {
             throw new GitletException(NO_COMMAND_ENTERED_MESSAGE);
         }
+        if (!args[0].equals("daemon") && Repository.DAEMON_SOCKET.exists()) {
+            // run the command in the daemon of the repository if it is running,
+            // the Daemon class is only loaded then
+            Integer exitCode = Daemon.forward(args);
+            if (exitCode != null) {
+                if (exitCode != 0) {
+                    System.exit(exitCode);
+                }
+                return;
+            }
+        }
+        try {
+            run(new Repository(), args);
+        } catch (ExitException e) {
+            // the command ended after printing its message
+        }
+    }
+
+    /**
+     * run the command in the repository
+     * @param repo
+     * @param args
+     */
+    static void run(Repository repo, String[] args) {
         String firstArg = args[0];
-        Repository repo = new Repository();
         switch(firstArg) {
             case "init":
                 if (args.length == 1) {
@@ -29,7 +53,7 @@ public class Main {
                 }
                 break;
             case "add":
-                repo.add(Arrays.stream(args).skip(1).toArray(String[]::new));
+                repo.add(Arrays.copyOfRange(args, 1, args.length));
                 break;
             case "commit":
                 if (args.length == 1) {
@@ -41,25 +65,21 @@ public class Main {
                 }
                 break;
             case "rm":
-                repo.rm(Arrays.stream(args).skip(1).toArray(String[]::new));
+                repo.rm(Arrays.copyOfRange(args, 1, args.length));
                 break;
             case "log":
-                if (args.length == 1) {
-                    repo.log();
-                } else {
-                    throw new GitletException(INCORRECT_OPERANDS_MESSAGE);
-                }
+                int[] logPage = parsePage(args);
+                repo.log(logPage[0], logPage[1]);
                 break;
             case "global-log":
-                if (args.length == 1) {
-                    repo.global_log();
-                } else {
-                    throw new GitletException(INCORRECT_OPERANDS_MESSAGE);
-                }
+                int[] globalLogPage = parsePage(args);
+                repo.global_log(globalLogPage[0], globalLogPage[1]);
                 break;
             case "find":
                 if (args.length == 2) {
                     repo.find(args[1]);
+                } else if (args.length == 3 && (args[1].equals("--prefix") || args[1].equals("--substring"))) {
+                    repo.find(args[2], args[1]);
                 } else {
                     throw new GitletException(INCORRECT_OPERANDS_MESSAGE);
                 }
@@ -111,6 +131,15 @@ public class Main {
                     throw new GitletException(INCORRECT_OPERANDS_MESSAGE);
                 }
                 break;
+            case "diff":
+                if (args.length == 3) {
+                    repo.diff(args[1], args[2], false);
+                } else if (args.length == 4 && args[1].equals("--stat")) {
+                    repo.diff(args[2], args[3], true);
+                } else {
+                    throw new GitletException(INCORRECT_OPERANDS_MESSAGE);
+                }
+                break;
             case "merge":
                 if (args.length == 2) {
                     repo.merge(args[1]);
@@ -118,9 +147,64 @@ public class Main {
                     throw new GitletException(INCORRECT_OPERANDS_MESSAGE);
                 }
                 break;
+            case "migrate":
+                if (args.length == 1) {
+                    repo.migrate();
+                }else{
+                    throw new GitletException(INCORRECT_OPERANDS_MESSAGE);
+                }
+                break;
+            case "gc":
+                if (args.length == 1) {
+                    repo.gc();
+                }else{
+                    throw new GitletException(INCORRECT_OPERANDS_MESSAGE);
+                }
+                break;
+            case "pack-refs":
+                if (args.length == 1) {
+                    repo.packRefs();
+                }else{
+                    throw new GitletException(INCORRECT_OPERANDS_MESSAGE);
+                }
+                break;
+            case "daemon":
+                if (args.length == 1) {
+                    Daemon.serve(repo);
+                }else if (args.length == 2 && args[1].equals("stop")) {
+                    Daemon.stop();
+                }else{
+                    throw new GitletException(INCORRECT_OPERANDS_MESSAGE);
+                }
+                break;
             default:
                 throw new GitletException(INVALID_COMMAND_MESSAGE);
         }
+        repo.printStatistics();
+    }
+
+    /**
+     * parse the options of log and global-log: [-n LIMIT] [--skip SKIP]
+     * @param args
+     * @return {limit, skip}, the limit is Integer.MAX_VALUE without -n
+     */
+    private static int[] parsePage(String[] args) {
+        int[] page = {Integer.MAX_VALUE, 0};
+        for (int i = 1; i < args.length; i += 2) {
+            int option = args[i].equals("-n") ? 0 : args[i].equals("--skip") ? 1 : -1;
+            if (option < 0 || i + 1 == args.length) {
+                throw new GitletException(INCORRECT_OPERANDS_MESSAGE);
+            }
+            try {
+                page[option] = Integer.parseInt(args[i + 1]);
+            } catch (NumberFormatException e) {
+                throw new GitletException(INCORRECT_OPERANDS_MESSAGE);
+            }
+            if (page[option] < 0) {
+                throw new GitletException(INCORRECT_OPERANDS_MESSAGE);
+            }
+        }
+        return page;
     }
 
 }
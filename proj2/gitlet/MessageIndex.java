@@ -0,0 +1,240 @@
+package gitlet;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.IntConsumer;
+
+/**
+ * An inverted index of the commit messages (.gitlet/message-index), for find: a SortedRecordFile of
+ *   [key: 8 bytes][position of the commit in the commit graph: int]
+ * with the keys
+ *   ['E'][7 bytes of the sha1 of the message]     for the exact messages
+ *   ['G'][3 bytes of the message][4 zero bytes]    for the trigrams of the message
+ *   ['V'][format][6 zero bytes]                     once, written when the index is built
+ * The trigrams are the 3 bytes sequences of the UTF-8 message between a START and two END bytes,
+ * so that the trigrams with START are at the start of the message, and a byte of the message is
+ * followed by at least 2 bytes. An index of another format (an older one did not have the second
+ * END, and missed a last byte) is built again.
+ *
+ * The positions of the commits in the commit graph grow with time, so the commits of a key come
+ * in the order they were made: the sorted records then the appended ones. A commit adds its records
+ * when it is made. The positions are only valid for the commit graph they were taken from: the
+ * index is built again when the commit graph is.
+ *
+ * The index finds candidates: the commits whose message may match, which are checked against
+ * their message (the sha1 of the message is truncated, and a message may have the trigrams of
+ * a query in another order).
+ */
+public class MessageIndex {
+    static final int RECORD_LENGTH = 12;
+    private static final int KEY_LENGTH = 8;
+    private static final byte EXACT = 'E';
+    private static final byte GRAM = 'G';
+    private static final byte FORMAT = 'V';
+    private static final byte CURRENT_FORMAT = 2;
+    private static final byte START = 2;
+    private static final byte END = 3;
+
+    private final SortedRecordFile records;
+
+    private MessageIndex(SortedRecordFile records) {
+        this.records = records;
+    }
+
+    /**
+     * open the index, creating it (empty) if it does not exist
+     * @param file
+     * @return
+     */
+    public static MessageIndex open(File file) {
+        return new MessageIndex(SortedRecordFile.open(file, RECORD_LENGTH));
+    }
+
+    public int size() {
+        return records.size();
+    }
+
+    public boolean isCurrent() {
+        return records.isCurrent();
+    }
+
+    /**
+     * whether the index was built in the current format, else it must be built again
+     */
+    public boolean hasCurrentFormat() {
+        return records.contains(record(formatKey(), 0));
+    }
+
+    public void close() {
+        records.close();
+    }
+
+    /**
+     * add the records of the message of the commit
+     * @param position the position of the commit in the commit graph
+     * @param message
+     */
+    public void add(int position, String message) {
+        records.append(records(position, message));
+    }
+
+    /**
+     * replace the records by the records of the messages, to build the index at once
+     * @param positions the positions of the commits in the commit graph
+     * @param messages the messages of the commits
+     */
+    public void replace(List<Integer> positions, List<String> messages) {
+        List<byte[]> all = new ArrayList<>();
+        all.add(record(formatKey(), 0));
+        for (int i = 0; i < positions.size(); i++) {
+            all.addAll(records(positions.get(i), messages.get(i)));
+        }
+        records.replace(all);
+    }
+
+    private static List<byte[]> records(int position, String message) {
+        List<byte[]> result = new ArrayList<>();
+        result.add(record(exactKey(message), position));
+        for (byte[] gram : grams(message)) {
+            result.add(record(gramKey(gram, gram.length), position));
+        }
+        return result;
+    }
+
+    /**
+     * the distinct trigrams of the message between START and two END
+     */
+    private static Set<byte[]> grams(String message) {
+        byte[] bytes = bounded(message, true, true);
+        Set<byte[]> result = new TreeSet<>(Arrays::compareUnsigned);
+        for (int i = 0; i + 3 <= bytes.length; i++) {
+            result.add(Arrays.copyOfRange(bytes, i, i + 3));
+        }
+        return result;
+    }
+
+    private static byte[] bounded(String text, boolean start, boolean end) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 3);
+        if (start) {
+            buffer.put(START);
+        }
+        buffer.put(bytes);
+        if (end) {
+            buffer.put(END).put(END);
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static byte[] exactKey(String message) {
+        byte[] digest = Utils.sha1Bytes(message);
+        byte[] key = new byte[KEY_LENGTH];
+        key[0] = EXACT;
+        System.arraycopy(digest, 0, key, 1, KEY_LENGTH - 1);
+        return key;
+    }
+
+    private static byte[] formatKey() {
+        byte[] key = new byte[KEY_LENGTH];
+        key[0] = FORMAT;
+        key[1] = CURRENT_FORMAT;
+        return key;
+    }
+
+    /**
+     * the key of a trigram, or the prefix of the keys of the trigrams starting with the bytes
+     */
+    private static byte[] gramKey(byte[] bytes, int length) {
+        byte[] key = new byte[1 + length];
+        key[0] = GRAM;
+        System.arraycopy(bytes, 0, key, 1, length);
+        return length == 3 ? Arrays.copyOf(key, KEY_LENGTH) : key;
+    }
+
+    private static byte[] record(byte[] key, int position) {
+        return ByteBuffer.allocate(RECORD_LENGTH).put(key).putInt(KEY_LENGTH, position).array();
+    }
+
+    private static int position(byte[] record) {
+        return ByteBuffer.wrap(record).getInt(KEY_LENGTH);
+    }
+
+    /**
+     * visit the commits which may have the message, in the order they were made
+     * @param message
+     * @param visitor gets the positions of the commits
+     */
+    public void findExact(String message, IntConsumer visitor) {
+        records.find(exactKey(message), 0xff, record -> visitor.accept(position(record)));
+    }
+
+    /**
+     * visit the commits whose message may start with the prefix, in the order they were made
+     * @param prefix
+     * @param visitor
+     */
+    public void findPrefix(String prefix, IntConsumer visitor) {
+        findGrams(bounded(prefix, true, false), visitor);
+    }
+
+    /**
+     * visit the commits whose message may contain the text, in the order they were made
+     * @param text
+     * @param visitor
+     */
+    public void findSubstring(String text, IntConsumer visitor) {
+        findGrams(bounded(text, false, false), visitor);
+    }
+
+    /**
+     * visit the commits which have all the trigrams of the bytes: the records of the rarest one
+     * are streamed, and looked up for the others
+     */
+    private void findGrams(byte[] bytes, IntConsumer visitor) {
+        if (bytes.length < 3) {
+            findShort(bytes, visitor);
+            return;
+        }
+        List<byte[]> keys = new ArrayList<>();
+        for (int i = 0; i + 3 <= bytes.length; i++) {
+            keys.add(gramKey(Arrays.copyOfRange(bytes, i, i + 3), 3));
+        }
+        // the rarest trigram first, a candidate missing the next rarest ones is dropped sooner
+        Map<byte[], Integer> counts = new HashMap<>();
+        for (byte[] key : keys) {
+            counts.put(key, records.count(key, 0xff));
+        }
+        keys.sort(Comparator.comparing(counts::get));
+        byte[] rarest = keys.get(0);
+        records.find(rarest, 0xff, record -> {
+            int position = position(record);
+            for (int i = 1; i < keys.size(); i++) {
+                if (!records.contains(record(keys.get(i), position))) {
+                    return;
+                }
+            }
+            visitor.accept(position);
+        });
+    }
+
+    /**
+     * fewer than 3 bytes are the start of the trigrams of every place they are at (two END follow
+     * the last byte of a message), the commits of several trigrams are merged in their order
+     */
+    private void findShort(byte[] bytes, IntConsumer visitor) {
+        TreeSet<Integer> positions = new TreeSet<>();
+        records.find(gramKey(bytes, bytes.length), 0xff, record -> positions.add(position(record)));
+        for (int position : positions) {
+            visitor.accept(position);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package gitlet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.ToLongFunction;
+
+/**
+ * A least recently used cache of the objects of one kind read by ObjectStore, keyed by sha1.
+ * The objects never change, so an object is only dropped when the weight of the cache goes over
+ * its budget: the number of commits, the number of entries of the trees, the bytes of the blobs.
+ * An object heavier than a quarter of the budget is not kept, it would push out all the others.
+ *
+ * The hits and the misses are counted, "java -Dgitlet.verbose=true gitlet.Main ..." prints them.
+ */
+public class ObjectCache<T> {
+    private final String name;
+    private final long budget;
+    private final ToLongFunction<T> weigher;
+    private final LinkedHashMap<String, Entry<T>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param name the kind of the objects, for statistics()
+     * @param budget the maximum total weight, 0 to keep nothing
+     * @param weigher the weight of an object
+     */
+    public ObjectCache(String name, long budget, ToLongFunction<T> weigher) {
+        this.name = name;
+        this.budget = budget;
+        this.weigher = weigher;
+    }
+
+    /**
+     * get the object and count a hit, or count a miss
+     * @param sha1
+     * @return the object, or null if it is not kept
+     */
+    public synchronized T get(String sha1) {
+        Entry<T> entry = entries.get(sha1);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.object;
+    }
+
+    /**
+     * keep the object read, dropping the least recently used ones over the budget
+     * @param sha1
+     * @param object
+     */
+    public synchronized void put(String sha1, T object) {
+        long objectWeight = weigher.applyAsLong(object);
+        if (objectWeight > budget / 4) {
+            return;
+        }
+        Entry<T> previous = entries.put(sha1, new Entry<>(object, objectWeight));
+        if (previous != null) {
+            weight -= previous.weight;
+        }
+        weight += objectWeight;
+        Iterator<Entry<T>> eldest = entries.values().iterator();
+        while (weight > budget) {
+            weight -= eldest.next().weight;
+            eldest.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return such as "trees: 12 hits, 3 misses, 3 objects of weight 40/262144"
+     */
+    public synchronized String statistics() {
+        return String.format("%s: %d hits, %d misses, %d objects of weight %d/%d",
+                name, hits, misses, entries.size(), weight, budget);
+    }
+
+    private static class Entry<T> {
+        private final T object;
+        private final long weight;
+
+        Entry(T object, long weight) {
+            this.object = object;
+            this.weight = weight;
+        }
+    }
+}
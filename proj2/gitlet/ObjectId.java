@@ -0,0 +1,123 @@
+package gitlet;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The sha1 of an object as its 20 bytes, for the ids kept in large numbers such as the entries of
+ * the trees: three fields take 32 bytes, a String of 40 hexadecimal digits about 80.
+ * The ids compare as their bytes, in the order of their hexadecimal numerals.
+ */
+public final class ObjectId implements Comparable<ObjectId> {
+    public static final int LENGTH = 20;
+
+    /** the bytes 0 to 7, 8 to 15 and 16 to 19 */
+    private final long high;
+    private final long middle;
+    private final int low;
+
+    private ObjectId(long high, long middle, int low) {
+        this.high = high;
+        this.middle = middle;
+        this.low = low;
+    }
+
+    /**
+     * @param hex the 40 hexadecimal digits of a sha1
+     * @return
+     */
+    public static ObjectId fromHex(String hex) {
+        if (hex.length() != 2 * LENGTH) {
+            throw new IllegalArgumentException("not a sha1: " + hex);
+        }
+        return new ObjectId(parse(hex, 0, 16), parse(hex, 16, 32), (int) parse(hex, 32, 40));
+    }
+
+    private static long parse(String hex, int start, int end) {
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(hex.charAt(i), 16);
+            if (digit < 0) {
+                throw new IllegalArgumentException("not a sha1: " + hex);
+            }
+            value = value << 4 | digit;
+        }
+        return value;
+    }
+
+    /**
+     * @param bytes
+     * @param offset the start of the 20 bytes of the sha1
+     * @return
+     */
+    public static ObjectId fromBytes(byte[] bytes, int offset) {
+        return new ObjectId(getLong(bytes, offset), getLong(bytes, offset + 8),
+                (int) (getLong(bytes, offset + 12)));
+    }
+
+    private static long getLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = value << 8 | (bytes[i] & 0xff);
+        }
+        return value;
+    }
+
+    public static ObjectId read(DataInput in) throws IOException {
+        return new ObjectId(in.readLong(), in.readLong(), in.readInt());
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeLong(high);
+        out.writeLong(middle);
+        out.writeInt(low);
+    }
+
+    public String toHex() {
+        char[] hex = new char[2 * LENGTH];
+        format(hex, 0, high, 16);
+        format(hex, 16, middle, 16);
+        format(hex, 32, low, 8);
+        return new String(hex);
+    }
+
+    private static void format(char[] hex, int start, long value, int digits) {
+        for (int i = start + digits - 1; i >= start; i--) {
+            hex[i] = Utils.hexDigit((int) value & 0xf);
+            value >>>= 4;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return toHex();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ObjectId)) {
+            return false;
+        }
+        ObjectId other = (ObjectId) o;
+        return high == other.high && middle == other.middle && low == other.low;
+    }
+
+    @Override
+    public int hashCode() {
+        // the bytes of a sha1 are already spread
+        return (int) (high >>> 32);
+    }
+
+    @Override
+    public int compareTo(ObjectId other) {
+        int cmp = Long.compareUnsigned(high, other.high);
+        if (cmp == 0) {
+            cmp = Long.compareUnsigned(middle, other.middle);
+        }
+        return cmp != 0 ? cmp : Integer.compareUnsigned(low, other.low);
+    }
+}
@@ -0,0 +1,1164 @@
+package gitlet;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.IntConsumer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static gitlet.Utils.join;
+
+/**
+ * Reads and writes the objects under .gitlet/objects/XX/XXXXXXXXX.
+ *
+ * An object file, modelled on the loose objects of git, is laid out as
+ *   [version: 1 byte][type: 1 byte][flags: 1 byte][payload length: 8 bytes][payload]
+ * where the payload is deflate-compressed when FLAG_DEFLATE is set.
+ * Commits and trees encode their own payload, a blob's payload is the raw
+ * content of the file and is streamed in and out of the object file.
+ * A blob which does not compress is stored without FLAG_DEFLATE, and is copied
+ * to the working file by the file system (FileChannel.transferTo).
+ *
+ * A file of at least CHUNK_THRESHOLD bytes is split in chunks (see Chunker), each stored
+ * once as an object of TYPE_CHUNK, so its versions share their unchanged chunks.
+ * Its blob (FLAG_CHUNKED, the payload length is the length of the content) lists them:
+ *   [chunk count][chunk sha1: 20 bytes][chunk length]...
+ * The sha1 of the blob is still the sha1 of its content.
+ *
+ * Objects written by older versions (Java serialization, or "blob <size>\0" + content)
+ * can still be read, and can be rewritten in this format by migrate(). A migrated root
+ * tree keeps the name its commits refer to, which is not the sha1 of its new content.
+ *
+ * gc() moves the objects to a pack (see Pack) under .gitlet/objects/pack, every read
+ * looks for the object file first, then in the packs.
+ *
+ * The sha1s and types of the objects are kept sorted in .gitlet/objects/index
+ * (see SortedRecordFile), to find the objects of a type by the prefix of their sha1.
+ */
+public class ObjectStore {
+
+    /** version 2: trees are nested, one per directory (they were flat in version 1) */
+    public static final byte VERSION = 2;
+    public static final byte TYPE_COMMIT = 1;
+    public static final byte TYPE_TREE = 2;
+    public static final byte TYPE_BLOB = 3;
+    public static final byte TYPE_CHUNK = 4;
+    public static final byte FLAG_DEFLATE = 1;
+    /** 2 is Pack.FLAG_DELTA */
+    public static final byte FLAG_CHUNKED = 4;
+    /** version + type + flags + payload length */
+    public static final int HEADER_LENGTH = 11;
+    /** any type, for open() */
+    private static final byte TYPE_ANY = 0;
+    /** the blobs up to this size may be stored as deltas by gc(), they are held in memory */
+    private static final long DELTA_LIMIT = 16L << 20;
+    /** the length of a delta chain, reading an object applies all of them */
+    private static final int MAX_DELTA_DEPTH = 10;
+    /** the larger objects stay in their object files */
+    private static final long PACK_OBJECT_LIMIT = 256L << 20;
+    /** the files smaller than this are written to a pack by writeBlobs(), they are read in memory */
+    private static final long BULK_FILE_LIMIT = 1L << 20;
+    /** the files of this size or larger are chunked, 0 or less to never chunk them */
+    private static final long CHUNK_THRESHOLD = Long.getLong("gitlet.chunkThreshold", 4L << 20);
+
+    public static final File PACK_DIR = join(Repository.OBJECT_DIR, "pack");
+    /** the packs, opened by getPacks() */
+    private static List<Pack> packs;
+    /** the index files of the packs when they were opened */
+    private static List<String> packNames;
+
+    /** [sha1: 20 bytes][type] of every object, sorted */
+    public static final File INDEX_FILE = join(Repository.OBJECT_DIR, "index");
+    private static final int INDEX_RECORD_LENGTH = 21;
+    /** opened by getIndex() */
+    private static SortedRecordFile index;
+
+    /** the objects read, kept for the next reads: a command reads the same commits, trees and
+     *  blobs several times, and a daemon runs many commands. The budgets are a number of commits,
+     *  a number of tree entries and a number of bytes of blobs. A commit or a tree read from its
+     *  object file does not hold its tree or its subtrees, they are read through TREES; only the
+     *  objects written by Java serialization embed them, and weigh them too. */
+    public static final ObjectCache<Commit> COMMITS = new ObjectCache<>("commits",
+            Long.getLong("gitlet.cache.commits", 4096), Commit::weight);
+    public static final ObjectCache<Tree> TREES = new ObjectCache<>("trees",
+            Long.getLong("gitlet.cache.trees", 1L << 18), Tree::weight);
+    public static final ObjectCache<byte[]> BLOBS = new ObjectCache<>("blobs",
+            Long.getLong("gitlet.cache.blobs", 32L << 20), content -> content.length);
+
+    private ObjectStore() {
+    }
+
+    /**
+     * get the object file of the sha1
+     * @param sha1
+     * @return
+     */
+    public static File objectFile(String sha1) {
+        return join(Repository.OBJECT_DIR, sha1.substring(0, 2), sha1.substring(2));
+    }
+
+    public static boolean exists(String sha1) {
+        return objectFile(sha1).exists() || isPacked(sha1);
+    }
+
+    private static boolean isPacked(String sha1) {
+        for (Pack pack : getPacks()) {
+            if (pack.find(sha1) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * synchronized, as the blobs may be read by several threads
+     */
+    private static synchronized List<Pack> getPacks() {
+        if (packs == null) {
+            packs = new ArrayList<>();
+            packNames = listPackNames();
+            for (String name : packNames) {
+                packs.add(Pack.open(join(PACK_DIR, name)));
+            }
+        }
+        return packs;
+    }
+
+    private static List<String> listPackNames() {
+        List<String> names = new ArrayList<>();
+        String[] idxFiles = PACK_DIR.list((dir, name) -> name.endsWith(".idx"));
+        if (idxFiles != null) {
+            names.addAll(Arrays.asList(idxFiles));
+            names.sort(String::compareTo);
+        }
+        return names;
+    }
+
+    /**
+     * drop the packs and the index if another process changed them since they were opened,
+     * for a process running several commands (see Daemon)
+     */
+    static synchronized void refresh() {
+        if (packs != null && !packNames.equals(listPackNames())) {
+            packs = null;
+        }
+        if (index != null && !index.isCurrent()) {
+            index.close();
+            index = null;
+        }
+    }
+
+    /**
+     * find the objects of the type whose sha1 starts with the prefix, with the index: the objects
+     * written by an older version of gitlet are indexed when the index is built, or by migrate
+     * @param prefix
+     * @param type
+     * @return the sha1s, sorted, none if the prefix is longer than a sha1
+     */
+    public static List<String> findByPrefix(String prefix, byte type) {
+        Set<String> result = new TreeSet<>();
+        if (prefix.length() > Utils.UID_LENGTH) {
+            return new ArrayList<>();
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (Character.digit(prefix.charAt(i), 16) < 0) {
+                return new ArrayList<>();
+            }
+        }
+        boolean odd = prefix.length() % 2 == 1;
+        byte[] key = Utils.fromHexString(odd ? prefix + "0" : prefix);
+        for (byte[] record : getIndex().find(key, odd ? 0xf0 : 0xff)) {
+            if (record[20] == type) {
+                result.add(Utils.toHexString(Arrays.copyOf(record, 20)));
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    /**
+     * open the index, building it from the objects if it does not exist
+     */
+    private static SortedRecordFile getIndex() {
+        if (index == null) {
+            boolean exists = INDEX_FILE.exists();
+            index = SortedRecordFile.open(INDEX_FILE, INDEX_RECORD_LENGTH);
+            if (!exists) {
+                index.replace(listIndexRecords());
+            }
+        }
+        return index;
+    }
+
+    /**
+     * the index records of all the objects, from the object files and the packs
+     */
+    private static List<byte[]> listIndexRecords() {
+        List<byte[]> records = new ArrayList<>();
+        for (File objectFile : listObjectFiles()) {
+            String sha1 = objectFile.getParentFile().getName() + objectFile.getName();
+            records.add(indexRecord(sha1, readType(sha1)));
+        }
+        for (Pack pack : getPacks()) {
+            for (int i = 0; i < pack.size(); i++) {
+                records.add(indexRecord(pack.getSha1(i), pack.getType(i)));
+            }
+        }
+        return records;
+    }
+
+    /**
+     * add the objects missing from the index, such as the objects an older version of gitlet wrote
+     * since the index was built
+     */
+    private static void indexMissingObjects() {
+        SortedRecordFile objectIndex = getIndex();
+        List<byte[]> missing = new ArrayList<>();
+        for (byte[] record : listIndexRecords()) {
+            if (!objectIndex.contains(record)) {
+                missing.add(record);
+            }
+        }
+        if (!missing.isEmpty()) {
+            objectIndex.append(missing);
+        }
+    }
+
+    private static void addToIndex(String sha1, byte type) {
+        getIndex().append(indexRecord(sha1, type));
+    }
+
+    private static byte[] indexRecord(String sha1, byte type) {
+        byte[] record = Arrays.copyOf(Utils.fromHexString(sha1), INDEX_RECORD_LENGTH);
+        record[20] = type;
+        return record;
+    }
+
+    /**
+     * get the type of the object
+     * @param sha1
+     * @return
+     */
+    static byte readType(String sha1) {
+        try (PayloadStream in = open(sha1, TYPE_ANY)) {
+            if (in != null) {
+                return in.type;
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        // an object written by Java serialization, or a blob written as "blob <size>\0" + content
+        File objectFile = objectFile(sha1);
+        if (!isSerialized(Utils.readContents(objectFile))) {
+            return TYPE_BLOB;
+        }
+        Serializable object = Utils.readObject(objectFile, Serializable.class);
+        if (object instanceof Commit) {
+            return TYPE_COMMIT;
+        }
+        return object instanceof Tree ? TYPE_TREE : TYPE_BLOB;
+    }
+
+    /**
+     * list the object files, the objects which are not in a pack
+     * @return
+     */
+    private static List<File> listObjectFiles() {
+        List<File> result = new ArrayList<>();
+        File[] dirs = Repository.OBJECT_DIR.listFiles(dir -> dir.isDirectory() && dir.getName().length() == 2);
+        if (dirs == null) {
+            return result;
+        }
+        for (File dir : dirs) {
+            File[] files = dir.listFiles(File::isFile);
+            if (files != null) {
+                result.addAll(Arrays.asList(files));
+            }
+        }
+        return result;
+    }
+
+    /* WRITING */
+
+    /**
+     * persist a commit or a tree (and its new subtrees), do nothing if it already exists
+     * @param object
+     */
+    public static void write(Persistable object) {
+        if (object instanceof Tree) {
+            writeTree((Tree) object);
+            return;
+        }
+        if (!exists(object.getSha1())) {
+            writeObjectFile(objectFile(object.getSha1()), object);
+            addToIndex(object.getSha1(), object.getType());
+        }
+    }
+
+    /**
+     * persist a tree and the subtrees that are not persisted yet
+     * @param tree
+     */
+    public static void writeTree(Tree tree) {
+        writeTree(tree, objectFile(tree.getSha1()));
+    }
+
+    private static void writeTree(Tree tree, File objectFile) {
+        if (Tree.EMPTY_TREE_SHA1.equals(tree.getSha1()) || objectFile.exists() || isPacked(tree.getSha1())) {
+            // the subtrees of a persisted tree are persisted too
+            return;
+        }
+        for (Tree subtree : tree.getLoadedSubtrees()) {
+            writeTree(subtree, objectFile(subtree.getSha1()));
+        }
+        writeObjectFile(objectFile, tree);
+        addToIndex(tree.getSha1(), TYPE_TREE);
+    }
+
+    /**
+     * write the object to the object file, replacing it atomically
+     * @param objectFile
+     * @param object
+     */
+    static void writeObjectFile(File objectFile, Persistable object) {
+        byte[] payload = encode(object);
+        writeObjectFile(objectFile, object.getType(), FLAG_DEFLATE, payload.length, payload);
+    }
+
+    private static void writeObjectFile(File objectFile, byte type, byte flags, long length, byte[] payload) {
+        File tmpFile = createTempFile();
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            writeHeader(out, type, flags, length);
+            DeflaterOutputStream deflater = deflate(out);
+            deflater.write(payload);
+            deflater.finish();
+        } catch (IOException e) {
+            tmpFile.delete();
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        moveToObjectFile(tmpFile, objectFile);
+    }
+
+    /**
+     * persist the content of the file as a blob, it is hashed while being
+     * compressed to a temporary file through a bounded buffer
+     * @param source the working file
+     * @return the sha1 of the blob
+     */
+    public static String writeBlob(File source) {
+        if (CHUNK_THRESHOLD > 0 && source.length() >= CHUNK_THRESHOLD) {
+            try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+                return writeChunkedBlob(in, in.size());
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e.getMessage());
+            }
+        }
+        File tmpFile = createTempFile();
+        String sha1;
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            long size = in.size();
+            sha1 = writeBlobFile(in, size, tmpFile, FLAG_DEFLATE);
+            if (size > 0 && tmpFile.length() - HEADER_LENGTH >= size) {
+                // it does not compress (it is compressed already), store it as it is
+                in.position(0);
+                sha1 = writeBlobFile(in, size, tmpFile, (byte) 0);
+            }
+        } catch (IOException e) {
+            tmpFile.delete();
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        if (exists(sha1)) {
+            tmpFile.delete();
+        } else {
+            moveToObjectFile(tmpFile, objectFile(sha1));
+            addToIndex(sha1, TYPE_BLOB);
+        }
+        return sha1;
+    }
+
+    /**
+     * persist the contents of many small files as blobs in one new pack, instead of an object file
+     * each (a directory, a temporary file and a rename per object), and add them to the index with
+     * one write. The blobs which already exist are not written again, and the larger files
+     * (which may be chunked) are written by writeBlob().
+     * @param sources the files
+     * @param progress gets the number of files written so far
+     * @return the sha1s of the blobs, in the order of the files
+     */
+    public static List<String> writeBlobs(List<File> sources, IntConsumer progress) {
+        List<String> sha1s = new ArrayList<>(sources.size());
+        List<byte[]> records = new ArrayList<>();
+        Pack.Writer writer = new Pack.Writer(PACK_DIR);
+        boolean empty = true;
+        try {
+            for (File source : sources) {
+                long size = source.length();
+                if (size >= BULK_FILE_LIMIT || CHUNK_THRESHOLD > 0 && size >= CHUNK_THRESHOLD) {
+                    sha1s.add(writeBlob(source));
+                    progress.accept(sha1s.size());
+                    continue;
+                }
+                // hashed as it is written, the file may have changed since it was hashed by the caller
+                byte[] content = Utils.readContents(source);
+                String sha1 = Utils.sha1("blob " + content.length + "\0", content);
+                sha1s.add(sha1);
+                if (!writer.contains(sha1) && !exists(sha1)) {
+                    if (writer.isFull()) {
+                        writer.finish();
+                        writer = new Pack.Writer(PACK_DIR);
+                        empty = true;
+                    }
+                    writer.add(sha1, TYPE_BLOB, (byte) 0, content.length, new ByteArrayInputStream(content));
+                    records.add(indexRecord(sha1, TYPE_BLOB));
+                    empty = false;
+                }
+                progress.accept(sha1s.size());
+            }
+            if (empty) {
+                writer.abort();
+            } else {
+                writer.finish();
+            }
+        } catch (IOException | RuntimeException e) {
+            writer.abort();
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        if (!records.isEmpty()) {
+            synchronized (ObjectStore.class) {
+                packs = null;
+            }
+            getIndex().append(records);
+        }
+        return sha1s;
+    }
+
+    /**
+     * write the blob object file of the content of in
+     * @param flags FLAG_DEFLATE, or 0 to store the content as it is
+     * @return the sha1 of the blob
+     */
+    private static String writeBlobFile(FileChannel in, long size, File objectFile, byte flags) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(objectFile)))) {
+            writeHeader(out, TYPE_BLOB, flags, size);
+            if ((flags & FLAG_DEFLATE) == 0) {
+                return Blob.copyAndHash(in, size, out);
+            }
+            DeflaterOutputStream deflater = deflate(out);
+            String sha1 = Blob.copyAndHash(in, size, deflater);
+            deflater.finish();
+            return sha1;
+        }
+    }
+
+    /**
+     * persist the content as chunks and a blob listing them, streaming it through a buffer
+     * of at most two chunks
+     * @param in
+     * @param size
+     * @return the sha1 of the blob
+     */
+    private static String writeChunkedBlob(FileChannel in, long size) throws IOException {
+        MessageDigest md = Utils.sha1Digest();
+        md.update(("blob " + size + "\0").getBytes(StandardCharsets.UTF_8));
+        ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+        DataOutputStream list = new DataOutputStream(chunks);
+        int count = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(2 * Chunker.MAX_SIZE);
+        long remaining = size;
+        while (remaining > 0) {
+            // the buffer holds the start of the next chunk (after flip, before compact)
+            while (buffer.hasRemaining() && remaining > buffer.position()) {
+                if (in.read(buffer) < 0) {
+                    throw new IOException("file changed while reading it");
+                }
+            }
+            buffer.flip();
+            int available = (int) Math.min(buffer.limit(), remaining);
+            while (available >= Chunker.MAX_SIZE || available == remaining && available > 0) {
+                int length = Chunker.cut(buffer.array(), buffer.position(), available);
+                md.update(buffer.array(), buffer.position(), length);
+                list.write(Utils.fromHexString(writeChunk(buffer.array(), buffer.position(), length)));
+                list.writeInt(length);
+                count++;
+                buffer.position(buffer.position() + length);
+                available -= length;
+                remaining -= length;
+            }
+            buffer.compact();
+        }
+        String sha1 = Utils.toHexString(md.digest());
+        if (!exists(sha1)) {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(payload);
+            out.writeInt(count);
+            out.write(chunks.toByteArray());
+            writeObjectFile(objectFile(sha1), TYPE_BLOB, (byte) (FLAG_DEFLATE | FLAG_CHUNKED), size,
+                    payload.toByteArray());
+            addToIndex(sha1, TYPE_BLOB);
+        }
+        return sha1;
+    }
+
+    /**
+     * persist a chunk of a content if it does not exist
+     * @return the sha1 of the chunk
+     */
+    private static String writeChunk(byte[] data, int offset, int length) {
+        String sha1 = Utils.sha1(("chunk " + length + "\0"), ByteBuffer.wrap(data, offset, length));
+        if (!exists(sha1)) {
+            writeObjectFile(objectFile(sha1), TYPE_CHUNK, FLAG_DEFLATE, length,
+                    Arrays.copyOfRange(data, offset, offset + length));
+            addToIndex(sha1, TYPE_CHUNK);
+        }
+        return sha1;
+    }
+
+    private static void writeHeader(DataOutputStream out, byte type, byte flags, long length) throws IOException {
+        out.writeByte(VERSION);
+        out.writeByte(type);
+        out.writeByte(flags);
+        out.writeLong(length);
+    }
+
+    /**
+     * compress to out, the deflater is released by finish()
+     */
+    private static DeflaterOutputStream deflate(OutputStream out) {
+        return new DeflaterOutputStream(out, new Deflater(Deflater.BEST_SPEED), Blob.BUFFER_SIZE) {
+            @Override
+            public void finish() throws IOException {
+                super.finish();
+                def.end();
+            }
+        };
+    }
+
+    /**
+     * decompress from in, the inflater is released by close()
+     */
+    static InflaterInputStream inflate(InputStream in) {
+        return new InflaterInputStream(in, new Inflater(), Blob.BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                inf.end();
+            }
+        };
+    }
+
+    private static byte[] encode(Persistable object) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            object.encode(out);
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    private static File createTempFile() {
+        try {
+            return File.createTempFile("tmp_obj_", null, Repository.OBJECT_DIR);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    private static void moveToObjectFile(File tmpFile, File objectFile) {
+        objectFile.getParentFile().mkdir();
+        try {
+            Files.move(tmpFile.toPath(), objectFile.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            tmpFile.delete();
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /* READING */
+
+    public static Commit readCommit(String sha1) {
+        Commit commit = COMMITS.get(sha1);
+        if (commit != null) {
+            return commit;
+        }
+        try (PayloadStream in = open(sha1, TYPE_COMMIT)) {
+            if (in == null) {
+                commit = Utils.readObject(objectFile(sha1), Commit.class);
+            } else {
+                commit = Commit.decode(sha1, in);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        COMMITS.put(sha1, commit);
+        return commit;
+    }
+
+    /**
+     * read the tree, it is shared with the other readers: it must be copied (new Tree(tree))
+     * to be changed
+     * @param sha1
+     * @return
+     */
+    public static Tree readTree(String sha1) {
+        if (Tree.EMPTY_TREE_SHA1.equals(sha1)) {
+            return new Tree();
+        }
+        Tree tree = TREES.get(sha1);
+        if (tree != null) {
+            return tree;
+        }
+        try (PayloadStream in = open(sha1, TYPE_TREE)) {
+            if (in == null) {
+                tree = Utils.readObject(objectFile(sha1), Tree.class);
+            } else {
+                tree = Tree.decode(sha1, in.version, in);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        TREES.put(sha1, tree);
+        return tree;
+    }
+
+    /**
+     * read the whole content of the blob into memory, the content is shared with
+     * the other readers and must not be changed
+     * @param sha1
+     * @return
+     */
+    public static byte[] readBlob(String sha1) {
+        byte[] content = BLOBS.get(sha1);
+        if (content != null) {
+            return content;
+        }
+        try (PayloadStream in = open(sha1, TYPE_BLOB)) {
+            if (in == null) {
+                content = readOldBlob(objectFile(sha1));
+            } else {
+                content = in.readAllBytes();
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        BLOBS.put(sha1, content);
+        return content;
+    }
+
+    /**
+     * get the length of the content of the blob, without reading the content
+     * @param sha1
+     * @return
+     */
+    public static long blobLength(String sha1) {
+        try (PayloadStream in = openStored(sha1, TYPE_BLOB)) {
+            if (in != null) {
+                return in.length;
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        return readOldBlob(objectFile(sha1)).length;
+    }
+
+    /**
+     * drop the objects kept by readCommit(), readTree() and readBlob(), to measure the reads
+     */
+    public static void clearCache() {
+        COMMITS.clear();
+        TREES.clear();
+        BLOBS.clear();
+    }
+
+    /**
+     * copy the content of the blob to the target file, creating or overwriting it.
+     * The content is streamed, so the memory used does not depend on its size.
+     * @param sha1
+     * @param target
+     */
+    public static void copyBlob(String sha1, File target) {
+        File objectFile = objectFile(sha1);
+        if (objectFile.exists() && copyStoredBlob(objectFile, target)) {
+            return;
+        }
+        try (OutputStream out = Files.newOutputStream(target.toPath())) {
+            copyBlob(sha1, out);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * write the content of the blob to the stream, which is not closed.
+     * The content is streamed, so the memory used does not depend on its size.
+     * @param sha1
+     * @param out
+     */
+    public static void copyBlob(String sha1, OutputStream out) {
+        try (PayloadStream in = open(sha1, TYPE_BLOB)) {
+            if (in == null) {
+                out.write(readOldBlob(objectFile(sha1)));
+                return;
+            }
+            in.transferTo(out);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * copy the content of a blob stored without compression from its object file,
+     * by the file system, without reading it through a buffer
+     * @return false if the blob is compressed, or written by an older version
+     */
+    private static boolean copyStoredBlob(File objectFile, File target) {
+        try (FileChannel in = FileChannel.open(objectFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            if (in.read(header, 0) < HEADER_LENGTH || header.get(0) < 1 || header.get(0) > VERSION
+                    || header.get(1) != TYPE_BLOB || header.get(2) != 0) {
+                return false;
+            }
+            long length = header.getLong(3);
+            try (FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                long copied = 0;
+                while (copied < length) {
+                    long n = in.transferTo(HEADER_LENGTH + copied, length - copied, out);
+                    if (n <= 0) {
+                        throw new IOException("object " + objectFile.getName() + " is truncated");
+                    }
+                    copied += n;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * open the payload of the object, from its object file or from a pack
+     * @param sha1
+     * @param expectedType the type of the object, or TYPE_ANY
+     * @return the stream of the payload, or null if the object file was written by an older version
+     */
+    private static PayloadStream open(String sha1, byte expectedType) throws IOException {
+        PayloadStream in = openStored(sha1, expectedType);
+        if (in != null && (in.flags & FLAG_CHUNKED) != 0) {
+            // the content of a chunked blob is read from its chunks
+            return new PayloadStream(in.version, in.type, (byte) 0, in.length, new ChunkedInputStream(in));
+        }
+        return in;
+    }
+
+    /**
+     * open the payload as it is stored, the list of the chunks for a chunked blob
+     */
+    private static PayloadStream openStored(String sha1, byte expectedType) throws IOException {
+        File objectFile = objectFile(sha1);
+        if (objectFile.exists()) {
+            return openPayload(objectFile, expectedType);
+        }
+        for (Pack pack : getPacks()) {
+            int position = pack.find(sha1);
+            if (position >= 0) {
+                byte type = pack.getType(position);
+                checkType(sha1, type, expectedType);
+                return new PayloadStream(pack.getObjectVersion(), type, pack.getFlags(position),
+                        pack.getLength(position), pack.openPayload(position));
+            }
+        }
+        throw new IllegalArgumentException("object " + sha1 + " does not exist");
+    }
+
+    /**
+     * open the payload of the object file, checking its version and type
+     * @return the stream of the payload, or null if the object was written by an older version
+     */
+    private static PayloadStream openPayload(File objectFile, byte expectedType) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(objectFile), Blob.BUFFER_SIZE));
+        byte version = in.readByte();
+        if (version < 1 || version > VERSION) {
+            in.close();
+            return null;
+        }
+        byte type = in.readByte();
+        byte flags = in.readByte();
+        long length = in.readLong();
+        try {
+            checkType(objectFile.getName(), type, expectedType);
+        } catch (IllegalArgumentException e) {
+            in.close();
+            throw e;
+        }
+        if ((flags & FLAG_DEFLATE) != 0) {
+            return new PayloadStream(version, type, flags, length,
+                    new BufferedInputStream(inflate(in), Blob.BUFFER_SIZE));
+        }
+        return new PayloadStream(version, type, flags, length, in);
+    }
+
+    private static void checkType(String name, byte type, byte expectedType) {
+        if (expectedType != TYPE_ANY && type != expectedType) {
+            throw new IllegalArgumentException("object " + name + " has type " + type
+                    + " instead of " + expectedType);
+        }
+    }
+
+    /**
+     * the payload of an object, and the version of its format
+     */
+    private static class PayloadStream extends DataInputStream {
+        private final int version;
+        private final byte type;
+        private final byte flags;
+        /** the length of the payload, of the content for a chunked blob */
+        private final long length;
+
+        PayloadStream(int version, byte type, byte flags, long length, InputStream in) {
+            super(in);
+            this.version = version;
+            this.type = type;
+            this.flags = flags;
+            this.length = length;
+        }
+    }
+
+    /**
+     * the content of a chunked blob, reading its chunks one after the other
+     */
+    private static class ChunkedInputStream extends InputStream {
+        private final DataInputStream list;
+        private int remaining;
+        private InputStream chunk;
+
+        ChunkedInputStream(DataInputStream list) throws IOException {
+            this.list = list;
+            this.remaining = list.readInt();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (chunk != null || remaining > 0) {
+                if (chunk == null) {
+                    byte[] id = new byte[20];
+                    list.readFully(id);
+                    list.readInt();
+                    remaining--;
+                    chunk = open(Utils.toHexString(id), TYPE_CHUNK);
+                }
+                int n = chunk.read(b, off, len);
+                if (n >= 0) {
+                    return n;
+                }
+                chunk.close();
+                chunk = null;
+            }
+            return -1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (chunk != null) {
+                chunk.close();
+            }
+            list.close();
+        }
+    }
+
+    /**
+     * get the version and the type of the object file, without reading its payload
+     * @param objectFile
+     * @return {version, type}, or {0, 0} if the object was written by Java serialization
+     *         or as "blob <size>\0" + content
+     */
+    static byte[] readVersionAndType(File objectFile) {
+        try (InputStream in = new FileInputStream(objectFile)) {
+            byte[] head = in.readNBytes(2);
+            if (head.length < 2 || head[0] < 1 || head[0] > VERSION) {
+                return new byte[]{0, 0};
+            }
+            return head;
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    private static byte[] readOldBlob(File objectFile) {
+        byte[] data = Utils.readContents(objectFile);
+        if (isSerialized(data)) {
+            return Utils.readObject(objectFile, Blob.class).getSerializedContent();
+        }
+        // "blob <size>\0" + content
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] == 0) {
+                return Arrays.copyOfRange(data, i + 1, data.length);
+            }
+        }
+        throw new IllegalArgumentException("not a blob object");
+    }
+
+    /**
+     * whether the data starts with the magic number of Java serialization
+     */
+    private static boolean isSerialized(byte[] data) {
+        return data.length >= 2 && data[0] == (byte) 0xAC && data[1] == (byte) 0xED;
+    }
+
+    /* MIGRATION */
+
+    /**
+     * rewrite the objects written by older versions in the current format,
+     * keeping their names, and index the objects missing from the index
+     * @return the number of rewritten objects
+     */
+    public static int migrate() {
+        int count = 0;
+        for (File objectFile : listObjectFiles()) {
+            byte[] versionAndType = readVersionAndType(objectFile);
+            if (versionAndType[0] == 0) {
+                migrateObject(objectFile);
+                count++;
+            } else if (versionAndType[0] < VERSION) {
+                migrateVersion(objectFile, versionAndType[1]);
+                count++;
+            }
+        }
+        indexMissingObjects();
+        return count;
+    }
+
+    private static void migrateObject(File objectFile) {
+        byte[] data = Utils.readContents(objectFile);
+        if (!isSerialized(data)) {
+            migrateBlob(objectFile, readOldBlob(objectFile));
+            return;
+        }
+        Serializable object = Utils.readObject(objectFile, Serializable.class);
+        if (object instanceof Blob) {
+            migrateBlob(objectFile, ((Blob) object).getSerializedContent());
+        } else if (object instanceof Commit) {
+            Commit commit = (Commit) object;
+            // the tree embedded in the commit is written again under its current sha1
+            writeTree(commit.getTree());
+            writeObjectFile(objectFile, commit);
+        } else if (object instanceof Tree) {
+            // a root tree keeps its old name, which the commits refer to: it is not the
+            // sha1 of its new content, so it is never equal by id to the same tree written
+            // by a new commit. Its subtrees get their real sha1, and Tree.diff compares
+            // the entries, not the ids of the roots.
+            objectFile.delete();
+            writeTree((Tree) object, objectFile);
+        } else {
+            throw new IllegalArgumentException("unknown object " + objectFile.getName());
+        }
+    }
+
+    /**
+     * rewrite an object written in an older version of the current format
+     */
+    private static void migrateVersion(File objectFile, byte type) {
+        if (type == TYPE_TREE) {
+            // the flat tree of version 1 is rewritten as nested trees, keeping its name
+            // (see migrateObject)
+            Tree tree = readTree(objectFile.getParentFile().getName() + objectFile.getName());
+            objectFile.delete();
+            writeTree(tree, objectFile);
+            return;
+        }
+        // the payload of commits and blobs did not change
+        try (RandomAccessFile file = new RandomAccessFile(objectFile, "rw")) {
+            file.writeByte(VERSION);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    private static void migrateBlob(File objectFile, byte[] content) {
+        File tmpFile = createTempFile();
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            writeHeader(out, TYPE_BLOB, FLAG_DEFLATE, content.length);
+            DeflaterOutputStream deflater = deflate(out);
+            deflater.write(content);
+            deflater.finish();
+        } catch (IOException e) {
+            tmpFile.delete();
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        moveToObjectFile(tmpFile, objectFile);
+    }
+
+    /* PACKING */
+
+    /**
+     * move all the objects, from the object files and the packs, to a new pack.
+     * The objects are migrated first. The versions of the files in the commits are
+     * delta compressed: each older version of a file is stored as a delta from the newer one.
+     * @param commits the commits, newest first
+     * @return {the number of objects packed, the number of them stored as deltas}
+     */
+    public static int[] gc(List<String> commits) {
+        migrate();
+        List<Pack> oldPacks = new ArrayList<>(getPacks());
+        Set<String> objects = new LinkedHashSet<>();
+        for (File objectFile : listObjectFiles()) {
+            objects.add(objectFile.getParentFile().getName() + objectFile.getName());
+        }
+        for (Pack pack : oldPacks) {
+            for (int i = 0; i < pack.size(); i++) {
+                objects.add(pack.getSha1(i));
+            }
+        }
+
+        // <filePath, the sha1s of its versions, newest first>
+        Map<String, List<String>> versions = new LinkedHashMap<>();
+        Set<String> visitedTrees = new HashSet<>();
+        for (String commit : commits) {
+            readCommit(commit).getTree().visitFiles(visitedTrees,
+                    (path, blob) -> versions.computeIfAbsent(path, k -> new ArrayList<>()).add(blob));
+        }
+
+        Set<String> packed = new HashSet<>();
+        Map<String, Integer> depths = new HashMap<>();
+        int deltas = 0;
+        // the names of the files of the new packs
+        Set<String> written = new HashSet<>();
+        Pack.Writer writer = new Pack.Writer(PACK_DIR);
+        try {
+            for (List<String> blobs : versions.values()) {
+                String base = null;
+                byte[] baseContent = null;
+                for (String blob : blobs) {
+                    if (!objects.contains(blob) || packed.contains(blob)) {
+                        continue;
+                    }
+                    if (writer.isFull()) {
+                        addPackFiles(written, writer.finish());
+                        writer = new Pack.Writer(PACK_DIR);
+                    }
+                    byte[] content = null;
+                    byte[] delta = null;
+                    if (isDeltaCandidate(blob)) {
+                        content = readBlob(blob);
+                        if (base != null && writer.contains(base) && depths.get(base) < MAX_DELTA_DEPTH) {
+                            delta = Delta.create(baseContent, content);
+                        }
+                    }
+                    if (delta != null) {
+                        writer.addDelta(blob, TYPE_BLOB, content.length, base, delta);
+                        depths.put(blob, depths.get(base) + 1);
+                        packed.add(blob);
+                        deltas++;
+                    } else if (addToPack(writer, blob)) {
+                        depths.put(blob, 0);
+                        packed.add(blob);
+                    }
+                    base = content == null ? null : blob;
+                    baseContent = content;
+                }
+            }
+            for (String sha1 : objects) {
+                if (packed.contains(sha1)) {
+                    continue;
+                }
+                if (writer.isFull()) {
+                    addPackFiles(written, writer.finish());
+                    writer = new Pack.Writer(PACK_DIR);
+                }
+                if (addToPack(writer, sha1)) {
+                    packed.add(sha1);
+                }
+            }
+            addPackFiles(written, writer.finish());
+        } catch (IOException | RuntimeException e) {
+            writer.abort();
+            throw new IllegalArgumentException(e.getMessage());
+        }
+
+        // the new packs have all the objects of the old ones, an old pack with the objects of a new one
+        // was replaced by it (they have the same name)
+        for (Pack pack : oldPacks) {
+            for (File file : pack.getFiles()) {
+                if (!written.contains(file.getName())) {
+                    file.delete();
+                }
+            }
+        }
+        packs = null;
+        for (String sha1 : packed) {
+            File objectFile = objectFile(sha1);
+            if (objectFile.delete()) {
+                File dir = objectFile.getParentFile();
+                String[] left = dir.list();
+                if (left != null && left.length == 0) {
+                    dir.delete();
+                }
+            }
+        }
+        return new int[]{packed.size(), deltas};
+    }
+
+    /**
+     * add the names of the index file of a pack and of its pack file
+     */
+    private static void addPackFiles(Set<String> names, File idxFile) {
+        String name = idxFile.getName();
+        names.add(name);
+        names.add(name.substring(0, name.length() - ".idx".length()) + ".pack");
+    }
+
+    /**
+     * whether the blob is small enough to be read in memory to be stored as a delta,
+     * a chunked blob is not: its versions already share their chunks
+     */
+    private static boolean isDeltaCandidate(String sha1) throws IOException {
+        try (PayloadStream in = openStored(sha1, TYPE_ANY)) {
+            return in != null && (in.flags & FLAG_CHUNKED) == 0 && in.length <= DELTA_LIMIT;
+        }
+    }
+
+    /**
+     * add the whole object to the pack, a chunked blob as the list of its chunks
+     * @return false if it stays in its object file: it is too large, or written by an older version
+     */
+    private static boolean addToPack(Pack.Writer writer, String sha1) throws IOException {
+        try (PayloadStream in = openStored(sha1, TYPE_ANY)) {
+            boolean chunked = in != null && (in.flags & FLAG_CHUNKED) != 0;
+            if (in == null || !chunked && in.length > PACK_OBJECT_LIMIT) {
+                return false;
+            }
+            writer.add(sha1, in.type, (byte) (in.flags & FLAG_CHUNKED), in.length, in);
+            return true;
+        }
+    }
+}
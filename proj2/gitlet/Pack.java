@@ -0,0 +1,449 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * A pack holds many objects in one file (.gitlet/objects/pack/pack-XXXX.pack), like the packs of git:
+ *   [magic "GPAK"][version][object format version][entry]...
+ * Each object is an entry
+ *   [type][flags][payload length: 8 bytes][base sha1: 20 bytes, for a delta][data]
+ * where the data is the deflated payload, or the deflated delta (see Delta) from the payload
+ * of the base object in the same pack when FLAG_DELTA is set.
+ *
+ * The index (pack-XXXX.idx) finds the entries without reading the pack
+ *   [magic "GIDX"][version][fanout: 256 ints][sha1: 20 bytes]...[entry offset: 8 bytes]...
+ * the sha1s are sorted, and fanout[b] is the number of sha1s whose first byte is at most b,
+ * so a lookup is a binary search in the range of the first byte.
+ *
+ * Both files are memory mapped.
+ */
+public class Pack {
+    private static final byte[] PACK_MAGIC = "GPAK".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] IDX_MAGIC = "GIDX".getBytes(StandardCharsets.US_ASCII);
+    private static final byte VERSION = 1;
+    /** magic + version + the version of the object format (ObjectStore.VERSION) of the payloads */
+    private static final int PACK_HEADER_LENGTH = 6;
+    private static final int IDX_HEADER_LENGTH = 5;
+    private static final int FANOUT_LENGTH = 256 * 4;
+    public static final byte FLAG_DELTA = 2;
+    /** type + flags + payload length */
+    private static final int ENTRY_HEADER_LENGTH = 10;
+
+    private final File packFile;
+    private final File idxFile;
+    private final MappedByteBuffer pack;
+    private final MappedByteBuffer idx;
+    private final int count;
+
+    private Pack(File packFile, File idxFile, MappedByteBuffer pack, MappedByteBuffer idx) {
+        this.packFile = packFile;
+        this.idxFile = idxFile;
+        this.pack = pack;
+        this.idx = idx;
+        this.count = idx.getInt(IDX_HEADER_LENGTH + FANOUT_LENGTH - 4);
+    }
+
+    /**
+     * open the pack of the index file
+     * @param idxFile
+     * @return
+     */
+    public static Pack open(File idxFile) {
+        String name = idxFile.getName();
+        File packFile = new File(idxFile.getParentFile(), name.substring(0, name.length() - 4) + ".pack");
+        MappedByteBuffer idx = map(idxFile);
+        MappedByteBuffer pack = map(packFile);
+        if (!hasMagic(idx, IDX_MAGIC) || !hasMagic(pack, PACK_MAGIC)) {
+            throw new IllegalArgumentException("not a pack: " + packFile.getName());
+        }
+        return new Pack(packFile, idxFile, pack, idx);
+    }
+
+    private static MappedByteBuffer map(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    private static boolean hasMagic(ByteBuffer buffer, byte[] magic) {
+        byte[] head = new byte[magic.length + 1];
+        if (buffer.limit() < head.length) {
+            return false;
+        }
+        buffer.get(0, head);
+        return Arrays.equals(Arrays.copyOf(head, magic.length), magic) && head[magic.length] == VERSION;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return the version of the object format of the payloads, see ObjectStore.VERSION
+     */
+    public int getObjectVersion() {
+        return pack.get(PACK_HEADER_LENGTH - 1);
+    }
+
+    /**
+     * the files of the pack, to delete it
+     */
+    File[] getFiles() {
+        return new File[]{idxFile, packFile};
+    }
+
+    /**
+     * find the object in the index
+     * @param sha1
+     * @return the position of the object in the index, or -1
+     */
+    public int find(String sha1) {
+        byte[] id = Utils.fromHexString(sha1);
+        int low = fanout((id[0] & 0xff) - 1);
+        int high = fanout(id[0] & 0xff) - 1;
+        byte[] other = new byte[20];
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            idx.get(idOffset(mid), other);
+            int order = Arrays.compareUnsigned(other, id);
+            if (order == 0) {
+                return mid;
+            } else if (order < 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param b a first byte, or -1
+     * @return the number of sha1s whose first byte is at most b
+     */
+    private int fanout(int b) {
+        return b < 0 ? 0 : idx.getInt(IDX_HEADER_LENGTH + b * 4);
+    }
+
+    private int idOffset(int position) {
+        return IDX_HEADER_LENGTH + FANOUT_LENGTH + position * 20;
+    }
+
+    public String getSha1(int position) {
+        byte[] id = new byte[20];
+        idx.get(idOffset(position), id);
+        return Utils.toHexString(id);
+    }
+
+    private int entryOffset(int position) {
+        return (int) idx.getLong(idOffset(count) + position * 8);
+    }
+
+    public byte getType(int position) {
+        return pack.get(entryOffset(position));
+    }
+
+    /**
+     * @param position
+     * @return the flags of the object, FLAG_DELTA and the flags of ObjectStore
+     */
+    public byte getFlags(int position) {
+        return pack.get(entryOffset(position) + 1);
+    }
+
+    /**
+     * @param position
+     * @return the length of the payload of the object (of the content for a chunked blob)
+     */
+    public long getLength(int position) {
+        return pack.getLong(entryOffset(position) + 2);
+    }
+
+    /**
+     * stream the payload of the object, a delta is applied in memory
+     * @param position
+     * @return
+     */
+    public InputStream openPayload(int position) {
+        int offset = entryOffset(position);
+        if ((pack.get(offset + 1) & FLAG_DELTA) != 0) {
+            return new ByteArrayInputStream(readPayload(position));
+        }
+        return openData(offset + ENTRY_HEADER_LENGTH, pack.get(offset + 1));
+    }
+
+    /**
+     * read the whole payload of the object, applying the deltas
+     * @param position
+     * @return
+     */
+    public byte[] readPayload(int position) {
+        int offset = entryOffset(position);
+        byte flags = pack.get(offset + 1);
+        try {
+            if ((flags & FLAG_DELTA) == 0) {
+                try (InputStream in = openData(offset + ENTRY_HEADER_LENGTH, flags)) {
+                    return in.readAllBytes();
+                }
+            }
+            byte[] baseId = new byte[20];
+            pack.get(offset + ENTRY_HEADER_LENGTH, baseId);
+            byte[] base = readPayload(find(Utils.toHexString(baseId)));
+            byte[] delta;
+            try (InputStream in = openData(offset + ENTRY_HEADER_LENGTH + 20, flags)) {
+                delta = in.readAllBytes();
+            }
+            return Delta.apply(base, delta);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    private InputStream openData(int offset, byte flags) {
+        InputStream in = new ByteBufferInputStream(pack.slice(offset, pack.limit() - offset));
+        if ((flags & ObjectStore.FLAG_DEFLATE) != 0) {
+            return ObjectStore.inflate(in);
+        }
+        return in;
+    }
+
+    /**
+     * read a memory mapped region without copying it first
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+    }
+
+    /**
+     * writes a new pack and its index, the objects are added in the order
+     * they should be read in, the index is sorted by finish()
+     */
+    static class Writer {
+        /** a pack is memory mapped, so it must stay below 2 GB */
+        static final long PACK_LIMIT = 1L << 30;
+
+        private final File dir;
+        private final File tmpFile;
+        private final FileOutputStream fileOut;
+        private final DataOutputStream out;
+        private long offset;
+        private final List<byte[]> ids = new ArrayList<>();
+        private final List<Long> offsets = new ArrayList<>();
+        private final Set<String> added = new HashSet<>();
+
+        Writer(File dir) {
+            this.dir = dir;
+            dir.mkdirs();
+            try {
+                this.tmpFile = File.createTempFile("tmp_pack_", null, dir);
+                this.fileOut = new FileOutputStream(tmpFile);
+                this.out = new DataOutputStream(new BufferedOutputStream(fileOut, Blob.BUFFER_SIZE));
+                out.write(PACK_MAGIC);
+                out.writeByte(VERSION);
+                out.writeByte(ObjectStore.VERSION);
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e.getMessage());
+            }
+            this.offset = PACK_HEADER_LENGTH;
+        }
+
+        boolean contains(String sha1) {
+            return added.contains(sha1);
+        }
+
+        boolean isFull() {
+            return offset >= PACK_LIMIT;
+        }
+
+        /**
+         * add an object, streaming its payload
+         * @param sha1
+         * @param type
+         * @param flags the flags of the object besides FLAG_DEFLATE
+         * @param length the length of the payload
+         * @param payload
+         */
+        void add(String sha1, byte type, byte flags, long length, InputStream payload) throws IOException {
+            startEntry(sha1, type, (byte) (ObjectStore.FLAG_DEFLATE | flags), length);
+            deflate(payload);
+        }
+
+        /**
+         * add an object as a delta from base, which must already be in this pack
+         * @param sha1
+         * @param type
+         * @param length the length of the payload
+         * @param base
+         * @param delta
+         */
+        void addDelta(String sha1, byte type, long length, String base, byte[] delta) throws IOException {
+            startEntry(sha1, type, (byte) (ObjectStore.FLAG_DEFLATE | FLAG_DELTA), length);
+            out.write(Utils.fromHexString(base));
+            offset += 20;
+            deflate(new ByteArrayInputStream(delta));
+        }
+
+        private void startEntry(String sha1, byte type, byte flags, long length) throws IOException {
+            ids.add(Utils.fromHexString(sha1));
+            offsets.add(offset);
+            added.add(sha1);
+            out.writeByte(type);
+            out.writeByte(flags);
+            out.writeLong(length);
+            offset += ENTRY_HEADER_LENGTH;
+        }
+
+        private void deflate(InputStream payload) throws IOException {
+            CountingOutputStream counter = new CountingOutputStream(out);
+            Deflater def = new Deflater(Deflater.BEST_SPEED);
+            try {
+                DeflaterOutputStream deflater = new DeflaterOutputStream(counter, def, Blob.BUFFER_SIZE);
+                payload.transferTo(deflater);
+                deflater.finish();
+            } finally {
+                def.end();
+            }
+            offset += counter.count;
+        }
+
+        /**
+         * write the index and move both files to their names. Both are synced before they are moved,
+         * and the directory after, as the objects they hold may be deleted next (see gc).
+         * A pack of the same objects as an existing pack gets its name, and replaces it.
+         * @return the index file
+         */
+        File finish() {
+            Integer[] order = new Integer[ids.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(ids.get(a), ids.get(b)));
+            byte[][] sortedIds = new byte[order.length][];
+            for (int i = 0; i < order.length; i++) {
+                sortedIds[i] = ids.get(order[i]);
+            }
+            String name = "pack-" + Utils.sha1((Object[]) sortedIds);
+            File packFile = new File(dir, name + ".pack");
+            File idxFile = new File(dir, name + ".idx");
+            File tmpIdx;
+            try {
+                out.flush();
+                fileOut.getFD().sync();
+                out.close();
+                tmpIdx = File.createTempFile("tmp_idx_", null, dir);
+                try (FileOutputStream idxFileOut = new FileOutputStream(tmpIdx)) {
+                    DataOutputStream idxOut = new DataOutputStream(new BufferedOutputStream(idxFileOut));
+                    idxOut.write(IDX_MAGIC);
+                    idxOut.writeByte(VERSION);
+                    int[] fanout = new int[256];
+                    for (byte[] id : sortedIds) {
+                        fanout[id[0] & 0xff]++;
+                    }
+                    int total = 0;
+                    for (int count : fanout) {
+                        total += count;
+                        idxOut.writeInt(total);
+                    }
+                    for (byte[] id : sortedIds) {
+                        idxOut.write(id);
+                    }
+                    for (Integer i : order) {
+                        idxOut.writeLong(offsets.get(i));
+                    }
+                    idxOut.flush();
+                    idxFileOut.getFD().sync();
+                }
+                // the index is moved last: a pack is only read once its index exists
+                Files.move(tmpFile.toPath(), packFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+                Files.move(tmpIdx.toPath(), idxFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+                Utils.syncDirectory(dir);
+            } catch (IOException e) {
+                tmpFile.delete();
+                throw new IllegalArgumentException(e.getMessage());
+            }
+            return idxFile;
+        }
+
+        /**
+         * give up the pack
+         */
+        void abort() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // the file is deleted anyway
+            }
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * count the bytes written through it
+     */
+    private static class CountingOutputStream extends OutputStream {
+        private final OutputStream out;
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
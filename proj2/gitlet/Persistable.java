@@ -1,7 +1,22 @@
 package gitlet;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 
 public interface Persistable extends Serializable {
     String getSha1();
+
+    /**
+     * the type tag of the object in its object file, see ObjectStore
+     * @return
+     */
+    byte getType();
+
+    /**
+     * write the payload of the object file
+     * @param out
+     * @throws IOException
+     */
+    void encode(DataOutputStream out) throws IOException;
 }
@@ -0,0 +1,70 @@
+package gitlet;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The progress of a long step of a command, such as hashing the files of a large add, shown on stderr
+ * as "Hashing files: 12000/50000" rewritten in place at most every tenth of a second.
+ * It is only shown for MIN_TOTAL items or more, and when gitlet runs in a terminal, so that the
+ * output of scripts and tests does not change. It may be advanced by several threads.
+ */
+public class Progress {
+    private static final int MIN_TOTAL = 1000;
+    private static final long PERIOD_NANOS = 100_000_000L;
+
+    private final String title;
+    private final int total;
+    private final boolean shown;
+    private final AtomicInteger done = new AtomicInteger();
+    private long lastShown;
+
+    /**
+     * @param title such as "Hashing files"
+     * @param total the number of items
+     */
+    public Progress(String title, int total) {
+        this.title = title;
+        this.total = total;
+        this.shown = total >= MIN_TOTAL && System.console() != null;
+        this.lastShown = System.nanoTime();
+    }
+
+    /**
+     * an item is done
+     */
+    public void increment() {
+        int count = done.incrementAndGet();
+        if (shown) {
+            show(count, false);
+        }
+    }
+
+    /**
+     * @param count the number of items done
+     */
+    public void set(int count) {
+        done.set(count);
+        if (shown) {
+            show(count, false);
+        }
+    }
+
+    /**
+     * all the items are done, end the line
+     */
+    public void finish() {
+        if (shown) {
+            show(done.get(), true);
+        }
+    }
+
+    private synchronized void show(int count, boolean last) {
+        long now = System.nanoTime();
+        if (!last && now - lastShown < PERIOD_NANOS) {
+            return;
+        }
+        lastShown = now;
+        System.err.print("\r" + title + ": " + count + "/" + total + (last ? ", done.\n" : ""));
+        System.err.flush();
+    }
+}
@@ -0,0 +1,320 @@
+package gitlet;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+import static gitlet.Utils.join;
+import static gitlet.Utils.plainFilenamesIn;
+import static gitlet.Utils.readContentsAsString;
+
+/**
+ * The branches of a repository, and HEAD, read by a command through one Refs.
+ *
+ * A branch is a loose ref, the file refs/heads/BRANCH holding the sha1 of its head commit,
+ * or a line of the packed-refs file written by pack-refs:
+ *   [sha1: 40 hex digits][space][branch]\n...
+ * sorted by branch, and searched by binary search in the memory mapped file, so that a repository
+ * with many branches has a few files instead of a file per branch. A loose ref overrides the packed
+ * one: the branches updated since pack-refs are loose refs again.
+ *
+ * HEAD is read once, and the branches resolved are kept, until the command changes them. The stats
+ * of the files they were read from are kept with them: the daemon keeps the Refs from a command to
+ * the next while they are current (see isCurrent), that is while no other process changed the files.
+ */
+public class Refs {
+    public static final File PACKED_REFS = join(Repository.GITLET_DIR, "packed-refs");
+    private static final String HEAD_PREFIX = "ref: refs/heads/";
+    /** the length of the sha1 at the start of a line of packed-refs, the branch follows a space */
+    private static final int SHA1_LENGTH = 40;
+
+    /** the branch HEAD refers to, read by getCurrentBranch() */
+    private String currentBranch;
+    /** <branch, sha1> of the branches resolved, null for the branches which do not exist */
+    private final Map<String, String> resolved = new HashMap<>();
+    /** packed-refs, mapped by getPacked() */
+    private ByteBuffer packed;
+    /** <file, stat> of HEAD, the loose refs and packed-refs as they were read or written, null if absent */
+    private final Map<File, FileStat> stats = new HashMap<>();
+
+    /**
+     * whether the files read are unchanged (their size, times and inode): another process may
+     * have moved HEAD, updated, created or deleted a branch, or packed the refs
+     * @return
+     */
+    public boolean isCurrent() {
+        for (Map.Entry<File, FileStat> entry : stats.entrySet()) {
+            if (!Objects.equals(FileStat.of(entry.getKey()), entry.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * keep the stat of a file read or written, the stat is taken before the file is read
+     */
+    private void keepStat(File file) {
+        stats.put(file, FileStat.of(file));
+    }
+
+    /**
+     * @return the name of the branch HEAD refers to
+     */
+    public String getCurrentBranch() {
+        if (currentBranch == null) {
+            keepStat(Repository.HEAD_FILE);
+            String head = readContentsAsString(Repository.HEAD_FILE).trim();
+            currentBranch = head.startsWith(HEAD_PREFIX) ? head.substring(HEAD_PREFIX.length()) : head;
+        }
+        return currentBranch;
+    }
+
+    /**
+     * make HEAD refer to the branch
+     * @param branch
+     */
+    public void setCurrentBranch(String branch) {
+        Utils.writeContents(Repository.HEAD_FILE, HEAD_PREFIX + branch);
+        keepStat(Repository.HEAD_FILE);
+        currentBranch = branch;
+    }
+
+    /**
+     * @return the sha1 of the head commit of the current branch
+     */
+    public String getHeadCommitId() {
+        return resolve(getCurrentBranch());
+    }
+
+    /**
+     * get the head commit of the branch, from its loose ref or from packed-refs
+     * @param branch
+     * @return the sha1, or null if the branch does not exist
+     */
+    public String resolve(String branch) {
+        if (resolved.containsKey(branch)) {
+            return resolved.get(branch);
+        }
+        File loose = join(Repository.BRANCH_HEAD_DIR, branch);
+        keepStat(loose);
+        String sha1 = loose.isFile() ? readContentsAsString(loose).trim() : findPacked(branch);
+        resolved.put(branch, sha1);
+        return sha1;
+    }
+
+    public boolean exists(String branch) {
+        return resolve(branch) != null;
+    }
+
+    /**
+     * point the branch to the commit, creating it if it does not exist, as a loose ref
+     * @param branch
+     * @param sha1
+     */
+    public void update(String branch, String sha1) {
+        File loose = join(Repository.BRANCH_HEAD_DIR, branch);
+        Utils.writeContents(loose, sha1);
+        keepStat(loose);
+        resolved.put(branch, sha1);
+    }
+
+    /**
+     * delete the loose ref of the branch, and its line in packed-refs
+     * @param branch
+     * @return false if the branch did not exist
+     */
+    public boolean delete(String branch) {
+        if (!exists(branch)) {
+            return false;
+        }
+        if (findPacked(branch) != null) {
+            Map<String, String> branches = readPacked();
+            branches.remove(branch);
+            writePacked(branches);
+        }
+        File loose = join(Repository.BRANCH_HEAD_DIR, branch);
+        loose.delete();
+        keepStat(loose);
+        resolved.put(branch, null);
+        return true;
+    }
+
+    /**
+     * @return the names of all the branches, sorted
+     */
+    public List<String> listBranches() {
+        List<String> loose = plainFilenamesIn(Repository.BRANCH_HEAD_DIR);
+        if (!PACKED_REFS.exists()) {
+            return new ArrayList<>(loose);
+        }
+        // merge the sorted loose and packed branches, a branch may be both
+        List<String> packedBranches = new ArrayList<>();
+        ByteBuffer lines = getPacked();
+        for (int start = 0, end; start < lines.limit(); start = end + 1) {
+            end = lineEnd(lines, start);
+            packedBranches.add(decode(lines, start + SHA1_LENGTH + 1, end));
+        }
+        List<String> branches = new ArrayList<>(loose.size() + packedBranches.size());
+        int i = 0;
+        int j = 0;
+        while (i < loose.size() || j < packedBranches.size()) {
+            int cmp = i == loose.size() ? 1 : j == packedBranches.size() ? -1
+                    : loose.get(i).compareTo(packedBranches.get(j));
+            if (cmp <= 0) {
+                branches.add(loose.get(i++));
+                if (cmp == 0) {
+                    j++;
+                }
+            } else {
+                branches.add(packedBranches.get(j++));
+            }
+        }
+        return branches;
+    }
+
+    /**
+     * move the loose refs to packed-refs
+     * @return the number of branches packed
+     */
+    public int pack() {
+        Map<String, String> branches = readPacked();
+        Map<String, String> loose = new HashMap<>();
+        for (String branch : plainFilenamesIn(Repository.BRANCH_HEAD_DIR)) {
+            String sha1 = readContentsAsString(join(Repository.BRANCH_HEAD_DIR, branch)).trim();
+            loose.put(branch, sha1);
+            branches.put(branch, sha1);
+        }
+        writePacked(branches);
+        for (Map.Entry<String, String> entry : loose.entrySet()) {
+            File file = join(Repository.BRANCH_HEAD_DIR, entry.getKey());
+            // a ref updated by another process since it was read stays loose, and overrides the packed one
+            if (readContentsAsString(file).trim().equals(entry.getValue())) {
+                file.delete();
+            }
+        }
+        return branches.size();
+    }
+
+    /**
+     * find the line of the branch in packed-refs by binary search, between line starts
+     * @param branch
+     * @return the sha1, or null
+     */
+    private String findPacked(String branch) {
+        ByteBuffer lines = getPacked();
+        if (lines == null) {
+            return null;
+        }
+        int low = 0;
+        int high = lines.limit();
+        while (low < high) {
+            int start = (low + high) >>> 1;
+            while (start > low && lines.get(start - 1) != '\n') {
+                start--;
+            }
+            int end = lineEnd(lines, start);
+            int cmp = branch.compareTo(decode(lines, start + SHA1_LENGTH + 1, end));
+            if (cmp == 0) {
+                return decode(lines, start, start + SHA1_LENGTH);
+            } else if (cmp < 0) {
+                high = start;
+            } else {
+                low = end + 1;
+            }
+        }
+        return null;
+    }
+
+    private static int lineEnd(ByteBuffer lines, int start) {
+        int end = start;
+        while (lines.get(end) != '\n') {
+            end++;
+        }
+        return end;
+    }
+
+    private static String decode(ByteBuffer lines, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        lines.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * map packed-refs, the mapping stays valid when the file is replaced
+     * @return the lines, or null if there is no packed-refs
+     */
+    private ByteBuffer getPacked() {
+        if (packed == null) {
+            keepStat(PACKED_REFS);
+            if (!PACKED_REFS.exists()) {
+                return null;
+            }
+            try (FileChannel channel = FileChannel.open(PACKED_REFS.toPath(), StandardOpenOption.READ)) {
+                packed = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e.getMessage());
+            }
+        }
+        return packed;
+    }
+
+    /**
+     * @return <branch, sha1> of all the lines of packed-refs, sorted
+     */
+    private Map<String, String> readPacked() {
+        Map<String, String> branches = new TreeMap<>();
+        ByteBuffer lines = getPacked();
+        for (int start = 0, end; lines != null && start < lines.limit(); start = end + 1) {
+            end = lineEnd(lines, start);
+            branches.put(decode(lines, start + SHA1_LENGTH + 1, end), decode(lines, start, start + SHA1_LENGTH));
+        }
+        return branches;
+    }
+
+    /**
+     * write the sorted branches to packed-refs, with a temporary file
+     * @param branches
+     */
+    private void writePacked(Map<String, String> branches) {
+        File tmpFile = new File(PACKED_REFS.getParentFile(), PACKED_REFS.getName() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tmpFile);
+             Writer out = new BufferedWriter(new OutputStreamWriter(fileOut, StandardCharsets.UTF_8))) {
+            for (Map.Entry<String, String> entry : branches.entrySet()) {
+                out.write(entry.getValue());
+                out.write(' ');
+                out.write(entry.getKey());
+                out.write('\n');
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        } catch (IOException e) {
+            tmpFile.delete();
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        try {
+            Files.move(tmpFile.toPath(), PACKED_REFS.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            tmpFile.delete();
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        Utils.syncDirectory(PACKED_REFS.getParentFile());
+        packed = null;
+    }
+}
@@ -1,16 +1,21 @@
 package gitlet;
 
+import gitlet.exception.ExitException;
 import gitlet.exception.GitletException;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.util.*;
+import java.util.function.IntConsumer;
 import java.time.Instant;
 
 
@@ -36,9 +41,28 @@ public class Repository {
     public static final File BRANCH_HEAD_DIR = join(GITLET_DIR, "refs", "heads");
     public static final File LOGS = join(GITLET_DIR, "logs");
     public static final File LOGS_HEAD = join(GITLET_DIR, "logs", "HEAD");
+    // the parents, trees and generations of the commits, see CommitGraph
+    public static final File COMMIT_GRAPH = join(GITLET_DIR, "commit-graph");
+    // the tokens of the commit messages, see MessageIndex
+    public static final File MESSAGE_INDEX = join(GITLET_DIR, "message-index");
+    // the socket of the daemon, see Daemon
+    public static final File DAEMON_SOCKET = join(GITLET_DIR, "daemon.sock");
     public static final File[] DIRS = {GITLET_DIR, OBJECT_DIR, BRANCH_HEAD_DIR, LOGS};
     public static final File[] FILES = {HEAD_FILE, INDEX_FILE, LOGS_HEAD};
 
+    /** opened by getCommitGraph() */
+    private CommitGraph commitGraph;
+    /** opened by getMessageIndex() */
+    private MessageIndex messageIndex;
+    /** read by getIndex(), it is the index the command changes, kept by the daemon while it is current */
+    private Index index;
+    /** HEAD and the branches, see getRefs() */
+    private Refs refs;
+    /** the number of new objects from which add writes them to a pack instead of an object file each */
+    private static final int BULK_ADD_FILES = 64;
+    /** print what the commands did besides their normal output, such as the files checked out */
+    private static final boolean VERBOSE = Boolean.getBoolean("gitlet.verbose");
+
 
     /**
      * initialize a repository, creating the necessary directories/fiiles
@@ -47,7 +71,7 @@ public class Repository {
         // if already initialized, do nothing
         if (GITLET_DIR.exists()){
             System.out.println(ALREADY_INITIALIZED);
-            System.exit(0);
+            throw new ExitException();
         }
         // else initialize a repository
         // create the dirs
@@ -80,15 +104,15 @@ public class Repository {
         Instant epoch0 = Instant.EPOCH;
         LocalDateTime initialCommitTime = LocalDateTime.ofInstant(epoch0, ZoneOffset.UTC);
         String msg = "initial commit";
-        Commit initCommit = new Commit(initialCommitTime, msg, null, new Index(), new Tree());
+        Commit initCommit = new Commit(initialCommitTime, msg, null, new Tree());
         persistObject(initCommit);
 
         // set the current branch to master
-        Utils.writeContents(HEAD_FILE, "ref: refs/heads/master");
+        getRefs().setCurrentBranch("master");
 
         // create a master branch and point to the initial commit
-        File masterHead = join(BRANCH_HEAD_DIR, "master");
-        Utils.writeContents(masterHead, initCommit.getSha1());
+        getRefs().update("master", initCommit.getSha1());
+        addToHistory(initCommit);
 
         String unixTimestamp = toUnixTimestamp(initialCommitTime);
         String commitData = initCommit.getSha1() + " " + unixTimestamp + " " + msg + "\n";
@@ -117,23 +141,28 @@ public class Repository {
          * b. exists in the staging area, but the content changed
          * c. content different from last commit
          */
+        List<String> relativePaths = new ArrayList<>();
         for (String filePath : validFiles){
-            String relativePath = getRelativePathtoCWD(filePath);
-            Blob blob = new Blob(relativePath);
-            String sha1 = blob.getSha1();
+            relativePaths.add(getRelativePathtoCWD(filePath));
+        }
+        Progress hashing = new Progress("Hashing files", relativePaths.size());
+        Map<String, String> filetoSha1 = getWorkingFileSha1s(index, relativePaths, hashing);
+        hashing.finish();
+        // <relative path, sha1> of the files to stage, they are persisted together
+        Map<String, String> toStage = new LinkedHashMap<>();
+        for (String relativePath : relativePaths){
+            String sha1 = filetoSha1.get(relativePath);
 
             if (index.stagedFilesForAdditionContainsFile(relativePath)){
                 // file in the stagde area
                 String stagedsha1 = index.getSha1(relativePath);
                 if (!sha1.equals(stagedsha1)){
                     if (!treeFiles.containsKey(relativePath)){
-                        persistObject(blob);
-                        index.addFileForAddition(relativePath, sha1);
+                        toStage.put(relativePath, sha1);
                     }else{
                         String treeSha1 = treeFiles.get(relativePath);
                         if (!treeSha1.equals(sha1)){
-                            persistObject(blob);
-                            index.addFileForAddition(relativePath, sha1);
+                            toStage.put(relativePath, sha1);
                         }else{
                             index.removeFileforAddition(relativePath);
                         }
@@ -145,16 +174,15 @@ public class Repository {
                 if (treeFiles.containsKey(relativePath)){
                     String lastCommitsha1 = treeFiles.get(relativePath);
                     if (! sha1.equals(lastCommitsha1)){
-                        persistObject(blob);
-                        index.addFileForAddition(relativePath, sha1);
+                        toStage.put(relativePath, sha1);
                     }
                 }else{
-                    persistObject(blob);
-                    index.addFileForAddition(relativePath, sha1);
+                    toStage.put(relativePath, sha1);
                 }
             }
         }
-        Utils.writeObject(INDEX_FILE, index);
+        stageFilesForAddition(index, toStage);
+        index.write();
     }
 
     /**
@@ -179,12 +207,15 @@ public class Repository {
         Tree tree = buildTree(index, parentTree);
 
         LocalDateTime time = LocalDateTime.now();
-        Commit commit = new Commit(time, msg, parentCommits, index, tree);
+        Commit commit = new Commit(time, msg, parentCommits, tree);
 
-        persistObject(commit);
+        // the tree before the commit which refers to it, and the commit before the branch:
+        // a command interrupted between two writes leaves no commit without its tree
         persistObject(tree);
-        clearIndex(index);
+        persistObject(commit);
+        addToHistory(commit);
         updateCurrentBranch(commit.getSha1());
+        clearIndex(index);
 
         // write commit metadata to logs/HEAD
         String unixTimestamp = toUnixTimestamp(time);
@@ -193,6 +224,42 @@ public class Repository {
 
     }
 
+    /**
+     * rewrite the objects written by older versions of gitlet in the current object format
+     */
+    public void migrate(){
+        isInitialized();
+        int count = ObjectStore.migrate();
+        System.out.println("Migrated " + count + " objects");
+    }
+
+    /**
+     * move the objects to a pack, storing the versions of a file as deltas
+     */
+    public void gc(){
+        isInitialized();
+        // the newest commits first, their versions of the files are the bases of the deltas
+        CommitGraph graph = getCommitGraph();
+        List<String> commits = new ArrayList<>();
+        for (int position = graph.size() - 1; position >= 0; position--) {
+            commits.add(graph.getSha1(position));
+        }
+        int[] count = ObjectStore.gc(commits);
+        System.out.println("Packed " + count[0] + " objects, " + count[1] + " of them as deltas");
+        getRefs().pack();
+    }
+
+    /**
+     * move the branches to the packed-refs file, see Refs
+     */
+    public void packRefs(){
+        isInitialized();
+        int count = getRefs().pack();
+        if (VERBOSE){
+            System.out.println("Packed " + count + " refs");
+        }
+    }
+
     /**
      * gitlet rm
      */
@@ -229,68 +296,163 @@ public class Repository {
                 System.out.println(NEITHER_STAGER_NOR_TRACKED + filePath);
             }
         }
-        Utils.writeObject(INDEX_FILE, index);
+        index.write();
     }
 
     /**
-     * gitlet log (mimic "git log --first-parent")
+     * print the first parents of the head commit, newest first
+     * @param limit the number of commits to print at most
+     * @param skip the number of commits to skip before
      */
-    public void log(){
+    public void log(int limit, int skip){
         // check whether it is initialized
         isInitialized();
 
-        Commit commit = getHeadCommit();
-        System.out.println(commit);
-
-        while (commit.getParentCommitID() != null){
-            String commitId = commit.getParentCommitID().get(0);
-            commit = getCommitbyId(commitId);
-            System.out.println(commit);
+        // walk the first parents in the commit graph, the commits are only read to be printed
+        CommitGraph graph = getCommitGraph();
+        int position = graph.position(getHeadCommitID());
+        for (int i = 0; i < skip && position != CommitGraph.NONE; i++){
+            position = graph.getParent(position, 0);
         }
-
+        PrintStream out = bufferedOut();
+        for (int i = 0; i < limit && position != CommitGraph.NONE; i++){
+            Commit commit = getCommitbyId(graph.getSha1(position));
+            printCommit(out, commit.getSha1(), toCommitDate(commit.getCommitTime()), commit.getMessage());
+            position = graph.getParent(position, 0);
+        }
+        out.flush();
     }
 
-    public void global_log() {
+    /**
+     * print the commits ever made, in the order of logs/HEAD, reading it line by line
+     * @param limit the number of commits to print at most
+     * @param skip the number of commits to skip before
+     */
+    public void global_log(int limit, int skip) {
         // check whether it is initialized
         isInitialized();
 
-        String contents = readContentsAsString(LOGS_HEAD);
-        String[] commits = contents.split("\n");
-        for (String commit : commits) {
-            String[] s = commit.split(" ", 3);
-            String commitId = s[0];
-            String commitUnixTime = s[1];
-            String commitTime = toCommitDate(commitUnixTime);
-            String commitMessage = s[2];
-            System.out.println(formatCommit(commitId, commitTime, commitMessage));
+        PrintStream out = bufferedOut();
+        try (BufferedReader reader = Files.newBufferedReader(LOGS_HEAD.toPath())) {
+            // the entry read, printed when the next one starts: a message may go on in the next lines
+            String commitId = null;
+            String commitTime = null;
+            StringBuilder message = null;
+            int count = 0;
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                // [commit id] [unix time] [message], the merge commits of older versions have no space
+                // between the time and the message
+                int timeEnd = 41;
+                while (timeEnd < line.length() && Character.isDigit(line.charAt(timeEnd))){
+                    timeEnd++;
+                }
+                if (line.length() < 41 || line.charAt(40) != ' ' || timeEnd == 41){
+                    if (message != null){
+                        message.append('\n').append(line);
+                    }
+                    continue;
+                }
+                if (message != null){
+                    printCommit(out, commitId, commitTime, message.toString());
+                    message = null;
+                }
+                if (count++ < skip){
+                    continue;
+                }
+                if (count - skip > limit){
+                    break;
+                }
+                commitId = line.substring(0, 40);
+                commitTime = toCommitDate(line.substring(41, timeEnd));
+                int messageStart = timeEnd < line.length() && line.charAt(timeEnd) == ' ' ? timeEnd + 1 : timeEnd;
+                message = new StringBuilder(line.substring(messageStart));
+            }
+            if (message != null){
+                printCommit(out, commitId, commitTime, message.toString());
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
         }
-        
+        out.flush();
     }
 
     /**
-     * Prints out the ids of all commits that have the given commit message.
+     * Prints out the ids of all commits that have the given commit message,
+     * in the order they were made.
      * @param message
      */
     public void find(String message){
+        find(message, "");
+    }
+
+    /**
+     * Prints out the ids of the commits whose message is the text, starts with it (--prefix)
+     * or contains it (--substring), as the message index finds them
+     * @param text
+     * @param mode "", "--prefix" or "--substring"
+     */
+    public void find(String text, String mode){
         // check whether it is initialized
         isInitialized();
-        String contents = readContentsAsString(LOGS_HEAD);
-        String[] commits = contents.split("\n");
-        boolean found = false;
-        for (String commit : commits) {
-            String[] s = commit.split(" ", 3);
-            String commitId = s[0];
-            String commitMessage = s[2];
-            if (commitMessage.equals(message)){
+        CommitGraph graph = getCommitGraph();
+        boolean[] found = {false};
+        IntConsumer printIfMatches = position -> {
+            String commitId = graph.getSha1(position);
+            String commitMessage = getCommitbyId(commitId).getMessage();
+            boolean matches;
+            switch (mode){
+                case "--prefix":
+                    matches = commitMessage.startsWith(text);
+                    break;
+                case "--substring":
+                    matches = commitMessage.contains(text);
+                    break;
+                default:
+                    matches = commitMessage.equals(text);
+            }
+            if (matches){
                 System.out.println(commitId);
-                found = true;
+                found[0] = true;
             }
+        };
+        switch (mode){
+            case "--prefix":
+                getMessageIndex().findPrefix(text, printIfMatches);
+                break;
+            case "--substring":
+                getMessageIndex().findSubstring(text, printIfMatches);
+                break;
+            default:
+                getMessageIndex().findExact(text, printIfMatches);
         }
-        if (!found){
+        if (!found[0]){
             System.out.println(NO_COMMIT_WITH_THAT_MESSAGE);
         }
     }
 
+    /**
+     * Prints the changes of the files from a commit to another, as a unified diff, or as the number
+     * of lines inserted and deleted in each file (--stat). The trees are diffed by Tree.diff, which
+     * skips the subtrees the commits share: the time grows with the changes, not with the files.
+     * @param from the id of the first commit, may be abbreviated
+     * @param to the id of the second commit, may be abbreviated
+     * @param stat
+     */
+    public void diff(String from, String to, boolean stat){
+        isInitialized();
+        Tree fromTree = getCommitbyAbbrID(from).getTree();
+        Tree toTree = getCommitbyAbbrID(to).getTree();
+        PrintStream out = bufferedOut();
+        DiffFormatter formatter = new DiffFormatter(out);
+        if (stat){
+            Tree.diff(fromTree, toTree, formatter::addStat);
+            formatter.printStat();
+        }else{
+            Tree.diff(fromTree, toTree, formatter::printPatch);
+        }
+        out.flush();
+    }
+
     /**
      * Displays what branches currently exist, and marks the current branch with a *.
      * Also displays what files have been staged for addition or removal.
@@ -300,8 +462,7 @@ public class Repository {
 
         // Branches
         System.out.println("=== Branches ===");
-        List<String> branches = plainFilenamesIn(BRANCH_HEAD_DIR);
-        branches.sort(String::compareTo);
+        List<String> branches = getRefs().listBranches();
         String head = getHead();
         for (String branch : branches) {
             if (branch.equals(head)){
@@ -332,8 +493,19 @@ public class Repository {
         
         Commit parentCommit = getHeadCommit();
         Map<String, String> treefiles = parentCommit.getTreeFiles();
-        Map<String, String> filetoSha1 = listFiletoSha1(CWD);
+        Set<String> workingFiles = new HashSet<>(listAllFiles(CWD));
         Map<String, String> stagedFilesMap = index.getStagedFilesForAddition();
+        // only the tracked files need to be hashed, and only if their stat changed
+        Set<String> trackedFiles = new HashSet<>(treefiles.keySet());
+        trackedFiles.addAll(stagedFilesMap.keySet());
+        List<String> trackedWorkingFiles = new ArrayList<>();
+        for (String file : trackedFiles) {
+            if (workingFiles.contains(file)){
+                trackedWorkingFiles.add(file);
+            }
+        }
+        Map<String, String> filetoSha1 = getWorkingFileSha1s(index, trackedWorkingFiles);
+        index.retainCachedFiles(trackedFiles);
 
         // Modifications Not Staged For Commit
         System.out.println("=== Modifications Not Staged For Commit ===");
@@ -374,11 +546,14 @@ public class Repository {
 
         // Untracked Files
         System.out.println("=== Untracked Files ===");
-        List<String> untrackedFiles = getUncheckedFiles(parentCommit);
+        List<String> untrackedFiles = getUncheckedFiles(parentCommit, index, workingFiles);
         untrackedFiles.sort(String::compareTo);
         untrackedFiles.forEach(file -> System.out.println(file));
         System.out.println();
 
+        // keep the sha1 computed this time for the next status
+        index.write();
+
     }
 
     /**
@@ -393,8 +568,7 @@ public class Repository {
         Commit headCommit = getHeadCommit();
         if (headCommit.treeContainsFile(relativePath)){
             String sha1 = headCommit.treeFileSha1(relativePath);
-            byte[] fileContent = getBlobContentFromSha1(sha1);
-            Utils.writeContents(relativePath, fileContent);
+            copyBlobToFile(sha1, relativePath);
         }else{
             throw new GitletException(FILE_NOT_EXIST_IN_THAT_COMMIT_MESSAGE);
         }
@@ -411,18 +585,13 @@ public class Repository {
     public void checkoutCommitFile(String commitId, String file){
         isInitialized();
         String relativePath = getRelativePathtoCWD(file);
-        File file1 = join(OBJECT_DIR, commitId.substring(0, 2), commitId.substring(2));
-        if (!file1.exists()){
-            throw new GitletException(NO_COMMIT_WITH_THAT_ID_EXIST_MESSAGE);
-        }
         Commit commit = getCommitbyAbbrID(commitId);
 
         if (!commit.treeContainsFile(relativePath)){
             throw new GitletException(FILE_NOT_EXIST_IN_THAT_COMMIT_MESSAGE);
         }else{
             String sha1 = commit.treeFileSha1(relativePath);
-            byte[] fileContent = getBlobContentFromSha1(sha1);
-            Utils.writeContents(relativePath, fileContent);
+            copyBlobToFile(sha1, relativePath);
         }
     }
 
@@ -451,15 +620,14 @@ public class Repository {
         // print "There is an untracked file in the way; delete it, or add and commit it first." and exit;
         checkFileConsistenceBetweenCommits(currentCommit, checkoutCommit);
 
-        // delete all files and add the checkout branch files
-        deleteAllFiles(CWD);
-        addCheckoutCommitFiles(checkoutCommit);
+        // only write and delete the files that differ from the checkout branch
+        Index index = getIndex();
+        checkoutCommitFiles(currentCommit, checkoutCommit, index);
 
         // update HEAD
-        Utils.writeContents(HEAD_FILE, "ref: refs/heads/" + branch);
+        getRefs().setCurrentBranch(branch);
 
         // clear the staging area
-        Index index = getIndex();
         clearIndex(index);
     }
 
@@ -473,17 +641,10 @@ public class Repository {
     public void branch(String branch){
         isInitialized();
 
-        File file = join(BRANCH_HEAD_DIR, branch);
-        if (file.exists()){
+        if (getRefs().exists(branch)){
             throw new GitletException(BRANCH_ALREADT_EXISTS_MESSAGE);
         }else{
-            try {
-                file.createNewFile();
-                String parentCommitID = getHeadCommitID();
-                Utils.writeContents(file, parentCommitID);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
+            getRefs().update(branch, getHeadCommitID());
         }
     }
 
@@ -499,11 +660,8 @@ public class Repository {
         if (head.equals(branch)){
             throw new GitletException(CONNOT_REMOVE_THE_CURRENT_BRANCH_MESSAGE);
         }
-        File file = join(BRANCH_HEAD_DIR, branch);
-        if (!file.exists()){
+        if (!getRefs().delete(branch)){
             throw new GitletException(BRANCH_DOES_NOT_EXIST_MESSAGE);
-        }else{
-            file.delete();
         }
     }
 
@@ -529,15 +687,14 @@ public class Repository {
         // print "There is an untracked file in the way; delete it, or add and commit it first." and exit;
         checkFileConsistenceBetweenCommits(currentCommit, commit);
 
-        // delete all files and add the checkout branch files
-        deleteAllFiles(CWD);
-        addCheckoutCommitFiles(commit);
+        // only write and delete the files that differ from the commit
+        Index index = getIndex();
+        checkoutCommitFiles(currentCommit, commit, index);
 
         // update the HEAD(moves the current branch’s head to that commit node)
         updateCurrentBranch(resetSha1);
 
         // clear the staging area
-        Index index = getIndex();
         clearIndex(index);
 
     }
@@ -571,7 +728,7 @@ public class Repository {
         //      F---G---B (feature)
         if (splitPoint.equals(branchCommitSha1)){
             System.out.println(GIVEN_BRANCH_IS_ANCESTOR_MESSAGE);
-            System.exit(0);
+            throw new ExitException();
         }
         //If the split point is the current branch, then the effect is to check out the given branch
         //A---B---C (current-branch)
@@ -581,16 +738,14 @@ public class Repository {
         if (splitPoint.equals(headCommitSha1)){
             checkoutBranch(branch);
             System.out.println(BRANCH_FAST_FORWARDED_MESSAGE);
-            System.exit(0);
+            throw new ExitException();
         }
-        Map<String, String> branchCommitFiles = branchCommit.getTreeFiles();
-        Map<String, String> headCommitFiles = headCommit.getTreeFiles();
-        Map<String, String> splitPointCommitFiles = splitPointCommit.getTreeFiles();
-
-        Set<String> files = new HashSet<>();
-        files.addAll(branchCommitFiles.keySet());
-        files.addAll(headCommitFiles.keySet());
-        files.addAll(splitPointCommitFiles.keySet());
+        // only the files changed in the branch since the split point can change the result (cases
+        // 1, 5, 6 and 8), the trees are diffed without reading the subtrees they share
+        Map<String, String[]> branchChanges = new LinkedHashMap<>();
+        Tree.diff(splitPointCommit.getTree(), branchCommit.getTree(), (path, splitPointSha1, branchSha1) ->
+                branchChanges.put(path, new String[]{splitPointSha1, branchSha1}));
+        Tree headTree = headCommit.getTree();
         // get index
         Index index = getIndex();
         // check if the staged area is clea
@@ -617,17 +772,22 @@ public class Repository {
          * 8.a   A          B           C       conflict                     checked
          * 8.b   A          B/X         X/B     conflict                     checked
          * 8.c   X          B           C       conflictt                    checked
+         *
+         * The files are classified first, in the order of their paths: the working files are then
+         * written, and the files changed in both merged, by the workers (see WorkingTree), and the
+         * index is changed on this thread at the end.
          */
-        boolean conflict = false;
-        for (String file : files) {
-            String branchContent = getContent(branchCommitFiles, file);
-            String headContent = getContent(headCommitFiles, file);
-            String splitPointContent = getContent(splitPointCommitFiles, file);
+        Map<String, String> filesToCheckout = new LinkedHashMap<>();
+        List<String> filesToRemove = new ArrayList<>();
+        Map<String, String[]> filesToMerge = new LinkedHashMap<>();
+        for (Map.Entry<String, String[]> change : branchChanges.entrySet()) {
+            String file = change.getKey();
+            String branchContent = change.getValue()[1];
+            String headContent = headTree.getFileSha1(file);
+            String splitPointContent = change.getValue()[0];
             if (branchContent != null && headContent != null && splitPointContent != null
             && splitPointContent.equals(headContent) && !splitPointContent.equals(branchContent)){
-                byte[] fileContents = getBlobContentFromSha1(branchContent);
-                Utils.writeContents(file, fileContents);
-                index.addFileForAddition(file, branchContent);
+                filesToCheckout.put(file, branchContent);
                 // case 1
             }/*else if (branchContent != null && headContent != null && splitPointContent != null
             && !splitPointContent.equals(headContent) && splitPointContent.equals(branchContent)){
@@ -644,17 +804,11 @@ public class Repository {
                 // do nothing
                 // case 4
             }*/else if (splitPointContent == null && headContent == null && branchContent != null){
-                byte[] fileContents = getBlobContentFromSha1(branchContent);
-                Utils.writeContents(file, fileContents);
-                index.addFileForAddition(file, branchContent);
+                filesToCheckout.put(file, branchContent);
                 // case 5
             }else if (splitPointContent != null && headContent != null && branchContent == null
             && splitPointContent.equals(headContent)){
-                File file1 = new File(file);
-                if (file1.exists()){
-                    file1.delete();
-                }
-                index.addFileForRemoval(file);
+                filesToRemove.add(file);
                 // case 6
             }/*else if (splitPointContent != null && headContent == null && branchContent != null
                     && splitPointContent.equals(branchContent)){
@@ -662,24 +816,43 @@ public class Repository {
                 // case 7
             }*/else if (branchContent != null && headContent != null && splitPointContent != null
             && !splitPointContent.equals(headContent) && !splitPointContent.equals(branchContent) && !headContent.equals(branchContent)){
-                handleMergeConflict(file, headContent, branchContent);
-                conflict = true;
+                filesToMerge.put(file, new String[]{splitPointContent, headContent, branchContent});
                 // case 8.a
             }else if (splitPointContent != null && headContent != null && branchContent == null && !splitPointContent.equals(headContent)){
-                handleMergeConflict(file, headContent, branchContent);
-                conflict = true;
+                filesToMerge.put(file, new String[]{splitPointContent, headContent, branchContent});
                 // case 8.b 1
             }else if (splitPointContent != null && headContent == null && branchContent != null && !splitPointContent.equals(branchContent)){
-                handleMergeConflict(file, headContent, branchContent);
-                conflict = true;
+                filesToMerge.put(file, new String[]{splitPointContent, headContent, branchContent});
                 // case 8.b 2
             }else if (splitPointContent == null && headContent != null && branchContent != null && !branchContent.equals(headContent)){
-                handleMergeConflict(file, headContent, branchContent);
-                conflict = true;
+                filesToMerge.put(file, new String[]{splitPointContent, headContent, branchContent});
                 // case 8.c
             }
         }
 
+        copyBlobsToFiles(filesToCheckout);
+        for (String file : filesToRemove) {
+            File removed = new File(file);
+            if (removed.exists()){
+                removed.delete();
+            }
+        }
+        makeParentDirs(filesToMerge.keySet());
+        Map<String, String> mergedFiles = WorkingTree.map(filesToMerge.keySet(), file -> {
+            String[] sha1s = filesToMerge.get(file);
+            return mergeFile(file, sha1s[0], sha1s[1], sha1s[2]);
+        });
+        boolean conflict = mergedFiles.size() < filesToMerge.size();
+
+        for (Map.Entry<String, String> entry : filesToCheckout.entrySet()) {
+            index.addFileForAddition(entry.getKey(), entry.getValue());
+        }
+        for (String file : filesToRemove) {
+            index.addFileForRemoval(file);
+        }
+        // the merged files are persisted like added ones, many of them to one pack
+        stageFilesForAddition(index, new TreeMap<>(mergedFiles));
+
         // make commit
         String msg = "Merged " + branch + " into" + head;
         commitForMerge(msg, index, headCommit, branchCommit);
@@ -698,21 +871,25 @@ public class Repository {
         Tree tree;
         if (index.isClean()){
             tree = headCommit.getTree();
-            commit = new Commit(time, msg, parentCommits, index, tree);
+            commit = new Commit(time, msg, parentCommits, tree);
         }else{
             Tree parentTree = headCommit.getTree();
             tree = buildTree(index, parentTree);
-            commit = new Commit(time, msg, parentCommits, index, tree);
-            clearIndex(index);
+            commit = new Commit(time, msg, parentCommits, tree);
         }
 
-        persistObject(commit);
+        // the tree, the commit, then the branch, as in commit()
         persistObject(tree);
+        persistObject(commit);
+        addToHistory(commit);
         updateCurrentBranch(commit.getSha1());
+        if (!index.isClean()){
+            clearIndex(index);
+        }
 
         // write commit metadata to logs/HEAD
         String unixTimestamp = toUnixTimestamp(time);
-        String commitData = commit.getSha1() + " " + unixTimestamp + msg + "\n";
+        String commitData = commit.getSha1() + " " + unixTimestamp + " " + msg + "\n";
         Utils.appendContents(LOGS_HEAD, commitData);
     }
 
@@ -721,10 +898,10 @@ public class Repository {
     /**
      * check whether thi repo is initialized
      */
-    private void isInitialized(){
+    void isInitialized(){
         if (!GITLET_DIR.exists()){
             System.out.println(NOT_IN_GITLET_DIR_MESSAGE);
-            System.exit(0);
+            throw new ExitException();
         }
     }
 
@@ -733,18 +910,31 @@ public class Repository {
     private List<String> basciCheckFiles(String[] filePaths){
         List<String> validPaths = new ArrayList<>();
         Path repoRootPath = CWD.toPath();
+        List<String> workingFiles = null;
         for (String filePath : filePaths) {
             // check existence
             File file = new File(filePath);
+            if (!file.exists() && isPathspec(filePath)){
+                if (workingFiles == null){
+                    workingFiles = listAllFiles(CWD);
+                }
+                List<String> matched = matchPathspec(filePath, workingFiles);
+                if (matched.isEmpty()){
+                    System.out.println(String.format(PATHSPEC_DID_NOT_MATCH_MESSAGE, filePath));
+                    throw new ExitException();
+                }
+                validPaths.addAll(matched);
+                continue;
+            }
             if (!file.exists()){
                 System.out.println(filePath + " does not exist");
-                System.exit(0);
+                throw new ExitException();
             }
             // check inside this repo?
             Path path = Paths.get(filePath).toAbsolutePath();
             if (!path.startsWith(repoRootPath)){
                 System.out.println("fatal: " + path + " is outside repository at " + repoRootPath);
-                System.exit(0);
+                throw new ExitException();
             }
             if (!filePath.equals("gitlet")){
                 validPaths.add(filePath);
@@ -753,6 +943,37 @@ public class Repository {
         return validPaths;
     }
 
+    /**
+     * whether the path is a glob pattern, such as "*.txt" or "src/**\/*.java"
+     */
+    private boolean isPathspec(String filePath){
+        return filePath.indexOf('*') >= 0 || filePath.indexOf('?') >= 0 || filePath.indexOf('[') >= 0;
+    }
+
+    /**
+     * get the working files matched by the glob pattern, relative to CWD: * and ? do not match
+     * the separator of the directories, ** does
+     * @param pattern
+     * @param workingFiles the relative paths of the working files
+     * @return
+     */
+    private List<String> matchPathspec(String pattern, List<String> workingFiles){
+        PathMatcher matcher;
+        try {
+            matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        } catch (IllegalArgumentException e) {
+            System.out.println(String.format(PATHSPEC_DID_NOT_MATCH_MESSAGE, pattern));
+            throw new ExitException();
+        }
+        List<String> matched = new ArrayList<>();
+        for (String file : workingFiles) {
+            if (matcher.matches(Paths.get(file))){
+                matched.add(file);
+            }
+        }
+        return matched;
+    }
+
     private List<String> basciCheckFilesForRm(String[] filePaths, Commit parentCommit){
         List<String> validPaths = new ArrayList<>();
         Path repoRootPath = CWD.toPath();
@@ -766,13 +987,13 @@ public class Repository {
             File file = new File(relativePath);
             if (!file.exists()){
                 System.out.println(relativePath + " does not exist");
-                System.exit(0);
+                throw new ExitException();
             }
             // check inside this repo?
             Path path = Paths.get(filePath).toAbsolutePath();
             if (!path.startsWith(repoRootPath)){
                 System.out.println("fatal: " + path + " is outside repository at " + repoRootPath);
-                System.exit(0);
+                throw new ExitException();
             }
             if (!filePath.equals("gitlet")){
                 validPaths.add(filePath);
@@ -785,10 +1006,18 @@ public class Repository {
      * get the parent commit Id from the HEAD file (gitlet add)
      */
     private String getHeadCommitID(){
-        String headContents = Utils.readContentsAsString(HEAD_FILE).trim();
-        String branchPath = headContents.substring(5).trim();
-        File branchFile = new File(GITLET_DIR, branchPath);
-        return Utils.readContentsAsString(branchFile).trim();
+        return getRefs().getHeadCommitId();
+    }
+
+    /**
+     * the refs of the command, HEAD is read once, kept by the daemon while they are current
+     * @return
+     */
+    private Refs getRefs(){
+        if (refs == null){
+            refs = new Refs();
+        }
+        return refs;
     }
 
 
@@ -796,9 +1025,130 @@ public class Repository {
      * get parent comit
      */
     private Commit getCommitbyId(String CommitId){
-        File parentCommitFile = join(OBJECT_DIR, CommitId.substring(0, 2), CommitId.substring(2));
-        Commit Commit = Utils.readObject(parentCommitFile, Commit.class);
-        return Commit;
+        // a commit never changes, the ObjectStore keeps the commits read
+        return ObjectStore.readCommit(CommitId);
+    }
+
+    /**
+     * drop the state kept since the previous command that another process changed:
+     * the index, the refs, the commit graph, the message index, the packs and the object index
+     * (the objects never change). The state still current is kept warm for the next command.
+     */
+    void refresh(){
+        if (index != null && !index.isCurrent()){
+            index = null;
+        }
+        if (refs != null && !refs.isCurrent()){
+            refs = null;
+        }
+        if (commitGraph != null && !commitGraph.isCurrent(COMMIT_GRAPH)){
+            commitGraph.close();
+            commitGraph = null;
+        }
+        if (messageIndex != null && !messageIndex.isCurrent()){
+            messageIndex.close();
+            messageIndex = null;
+        }
+        ObjectStore.refresh();
+    }
+
+    /**
+     * print the hits and misses of the object caches since the JVM started, with gitlet.verbose
+     */
+    void printStatistics(){
+        if (VERBOSE){
+            System.out.println(ObjectStore.COMMITS.statistics());
+            System.out.println(ObjectStore.TREES.statistics());
+            System.out.println(ObjectStore.BLOBS.statistics());
+        }
+    }
+
+    void close(){
+        if (commitGraph != null){
+            commitGraph.close();
+            commitGraph = null;
+        }
+        if (messageIndex != null){
+            messageIndex.close();
+            messageIndex = null;
+        }
+    }
+
+    /**
+     * open the message index, building it from the commits of logs/HEAD if it does not exist
+     * or has an older format (the repository was made by an older version of gitlet)
+     * @return
+     */
+    private MessageIndex getMessageIndex(){
+        if (messageIndex == null){
+            // the commit graph first: building it drops the message index, whose positions are its own
+            getCommitGraph();
+            boolean exists = MESSAGE_INDEX.exists();
+            messageIndex = MessageIndex.open(MESSAGE_INDEX);
+            if (!exists || !messageIndex.hasCurrentFormat()){
+                buildMessageIndex();
+            }
+        }
+        return messageIndex;
+    }
+
+    private void buildMessageIndex(){
+        Set<Integer> seen = new HashSet<>();
+        List<Integer> positions = new ArrayList<>();
+        List<String> messages = new ArrayList<>();
+        if (!LOGS_HEAD.exists()){
+            messageIndex.replace(positions, messages);
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(LOGS_HEAD.toPath())) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                // the lines start with the commit id, a message may go on in the next lines
+                if (line.length() < 41 || line.charAt(40) != ' ' || !ObjectStore.exists(line.substring(0, 40))){
+                    continue;
+                }
+                String commitId = line.substring(0, 40);
+                int position = getCommitGraph().position(commitId);
+                if (seen.add(position)){
+                    positions.add(position);
+                    messages.add(getCommitbyId(commitId).getMessage());
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        messageIndex.replace(positions, messages);
+    }
+
+    /**
+     * add the new commit to the commit graph and to the message index
+     * @param commit
+     */
+    private void addToHistory(Commit commit){
+        int position = getCommitGraph().add(commit);
+        getMessageIndex().add(position, commit.getMessage());
+    }
+
+    /**
+     * open the commit graph, building it from the branches if it is empty
+     * (the repository was made by an older version of gitlet). The message index refers to
+     * the positions of the commits in the graph, it is dropped and built again with the graph.
+     * @return
+     */
+    private CommitGraph getCommitGraph(){
+        if (commitGraph == null){
+            commitGraph = CommitGraph.open(COMMIT_GRAPH);
+            if (commitGraph.size() == 0){
+                if (messageIndex != null){
+                    messageIndex.close();
+                    messageIndex = null;
+                }
+                MESSAGE_INDEX.delete();
+                for (String branch : getRefs().listBranches()) {
+                    commitGraph.position(getRefs().resolve(branch));
+                }
+            }
+        }
+        return commitGraph;
     }
 
     /**
@@ -813,58 +1163,131 @@ public class Repository {
 
 
     /**
-     * list all files under this repo(exclude .getlet)
+     * list all files under this repo(exclude .getlet), the directories are walked in parallel
      * @param file
-     * @return List<filepath relative to CWD>
+     * @return List<filepath relative to CWD>, sorted
      */
     public List<String> listAllFiles(File file){
-        List<String> fileList = new ArrayList<>();
-        if (file.isDirectory() && !file.getName().equals(".gitlet") && !file.getName().equals("gitlet")){
-            File[] files = file.listFiles();
-            if (files != null){
-                for (File subFile : files) {
-                    fileList.addAll(listAllFiles(subFile));
-                }
-            }
-        }else if (file.isFile()){
-            fileList.add(getRelativePathtoCWD(file));
-        }
-        return fileList;
+        return WorkingTree.listFiles(file, getRelativePathtoCWD(file));
     }
 
 
     /**
-     * get the Map<file, sha1> of all files in this repo
-     * @param file
-     * @return
+     * get the sha1s of the working files, hashed in parallel, a file is re-hashed
+     * only if its stat changed since it was last hashed
+     * @param index the index holding the stat cache
+     * @param relativePaths
+     * @return <relative path, sha1>, without the files that do not exist
+     */
+    private Map<String, String> getWorkingFileSha1s(Index index, Collection<String> relativePaths){
+        return getWorkingFileSha1s(index, relativePaths, null);
+    }
+
+    /**
+     * @param progress advanced for each file, may be null
      */
-    private Map<String, String> listFiletoSha1(File file){
+    private Map<String, String> getWorkingFileSha1s(Index index, Collection<String> relativePaths,
+                                                    Progress progress){
+        // the stat cache is only read by the workers, and updated afterwards on this thread
+        Map<String, HashedFile> hashedFiles = WorkingTree.map(relativePaths, relativePath -> {
+            if (progress != null){
+                progress.increment();
+            }
+            long hashedAt = currentTimeNanos();
+            FileStat stat = FileStat.of(new File(relativePath));
+            if (stat == null){
+                return null;
+            }
+            String sha1 = index.getCachedSha1(relativePath, stat);
+            if (sha1 != null){
+                return new HashedFile(null, sha1, 0);
+            }
+            return new HashedFile(stat, new Blob(relativePath).getSha1(), hashedAt);
+        });
         Map<String, String> filetoSha1 = new HashMap<>();
-        if (file.isDirectory() && !file.getName().equals(".gitlet") && !file.getName().equals("gitlet")){
-            File[] files = file.listFiles();
-            if (files != null){
-                for (File subFile : files) {
-                    filetoSha1.putAll(listFiletoSha1(subFile));
-                }
+        for (Map.Entry<String, HashedFile> entry : hashedFiles.entrySet()) {
+            HashedFile hashed = entry.getValue();
+            if (hashed.stat != null){
+                index.cacheSha1(entry.getKey(), hashed.stat, hashed.sha1, hashed.hashedAt);
             }
-        }else if (file.isFile()){
-            Blob blob = new Blob(file.toString());
-            String sha1 = blob.getSha1();
-            String relativePath = getRelativePathtoCWD(file);
-            filetoSha1.put(relativePath, sha1);
+            filetoSha1.put(entry.getKey(), hashed.sha1);
         }
         return filetoSha1;
     }
 
+    /**
+     * a working file hashed by a worker, stat is null if its sha1 was cached
+     */
+    private static class HashedFile {
+        private final FileStat stat;
+        private final String sha1;
+        private final long hashedAt;
+
+        HashedFile(FileStat stat, String sha1, long hashedAt){
+            this.stat = stat;
+            this.sha1 = sha1;
+            this.hashedAt = hashedAt;
+        }
+    }
+
+    private long currentTimeNanos(){
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000_000L + now.getNano();
+    }
+
+    /**
+     * stage the working files for addition, persist their contents unless the objects already exist:
+     * BULK_ADD_FILES new objects or more are written to one pack
+     * @param index
+     * @param files <relative path, sha1>
+     */
+    private void stageFilesForAddition(Index index, Map<String, String> files){
+        List<String> missing = new ArrayList<>();
+        for (Map.Entry<String, String> entry : files.entrySet()) {
+            if (!objectExists(entry.getValue())){
+                missing.add(entry.getKey());
+            }
+        }
+        if (missing.size() >= BULK_ADD_FILES){
+            List<File> sources = new ArrayList<>();
+            for (String relativePath : missing) {
+                sources.add(new File(relativePath));
+            }
+            Progress writing = new Progress("Writing objects", sources.size());
+            List<String> sha1s = ObjectStore.writeBlobs(sources, writing::set);
+            writing.finish();
+            for (int i = 0; i < missing.size(); i++) {
+                files.put(missing.get(i), sha1s.get(i));
+            }
+        }else{
+            for (String relativePath : missing) {
+                files.put(relativePath, persistBlob(relativePath));
+            }
+        }
+        for (Map.Entry<String, String> entry : files.entrySet()) {
+            index.addFileForAddition(entry.getKey(), entry.getValue());
+        }
+    }
+
 
     /**
      * persistent object
      */
     private <T extends Persistable> void persistObject(T object) {
-        String sha1 = object.getSha1();
-        File objectFile = join(OBJECT_DIR, sha1.substring(0, 2));
-        objectFile.mkdir();
-        Utils.writeObject(new File(objectFile, sha1.substring(2)), object);
+        ObjectStore.write(object);
+    }
+
+    /**
+     * persist the content of the working file as a blob
+     * @param relativePath
+     * @return the sha1 of the blob
+     */
+    private String persistBlob(String relativePath){
+        return ObjectStore.writeBlob(new File(relativePath));
+    }
+
+    private boolean objectExists(String sha1){
+        return ObjectStore.exists(sha1);
     }
 
     /**
@@ -872,17 +1295,14 @@ public class Repository {
      */
     private void clearIndex(Index index){
         index.clear();
-        Utils.writeObject(INDEX_FILE, index);
+        index.write();
     }
 
     /**
      * update the current branch reference to point to the new commit
      */
     private void updateCurrentBranch(String commitId){
-        String headContent = Utils.readContentsAsString(HEAD_FILE).trim();
-        String currentBranch = headContent.substring(5).trim();
-        File branchFile = new File(GITLET_DIR, currentBranch);
-        Utils.writeContents(branchFile, commitId);
+        getRefs().update(getRefs().getCurrentBranch(), commitId);
     }
 
 
@@ -902,35 +1322,21 @@ public class Repository {
     }
 
     private Index getIndex(){
-        Path indexPath = INDEX_FILE.toPath();
-        Index index;
-        if (! Files.exists(indexPath)){
-            try {
-                Files.createFile(indexPath);
-                index = new Index();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        }else{
-            if (INDEX_FILE.length() == 0){
-                index = new Index();
-            }else{
-                index = Utils.readObject(indexPath.toFile(), Index.class);
-            }
+        if (index != null){
+            return index;
         }
+        index = Index.read(INDEX_FILE);
         return index;
     }
 
-    private List<String> getUncheckedFiles(Commit currentCommit){
-        Map<String, String> filetoSha1 = listFiletoSha1(CWD);
-        Index index = getIndex();
+    private List<String> getUncheckedFiles(Commit currentCommit, Index index, Collection<String> workingFiles){
         List<String> stagedFilesForRemoval = index.getStagedFilesForRemoval();
+        Map<String, String> treeFiles = currentCommit.getTreeFiles();
         List<String> untrackedFiles = new ArrayList<>();
         // files present in the working directory but neither staged for addition nor tracked.
         // This includes files that have been staged for removal, but then re-created without Gitlet’s knowledge.
-        for(Map.Entry<String, String> entry : filetoSha1.entrySet()){
-            String file = entry.getKey();
-            if (!index.stagedFilesForAdditionContainsFile(file) && !currentCommit.getTreeFiles().containsKey(file)){
+        for (String file : workingFiles) {
+            if (!index.stagedFilesForAdditionContainsFile(file) && !treeFiles.containsKey(file)){
                 untrackedFiles.add(file);
             }
         }
@@ -945,19 +1351,74 @@ public class Repository {
     }
 
     /**
-     * delete all files under this repo
-     * @param file
+     * update the working directory from the current commit to the checked out commit, touching only
+     * the files whose content differs: the files that differ between the trees of the commits,
+     * the files staged in the index, and the tracked files changed in the working directory.
+     * The tracked files that are not in the checked out commit are deleted, the untracked files are left alone.
+     * @param currentCommit
+     * @param checkoutCommit
+     * @param index
      */
-    private void deleteAllFiles(File file){
-        if (file.isDirectory() && !file.getName().equals(".gitlet") && !file.getName().equals("gitlet")){
-            File[] files = file.listFiles();
-            if (files != null){
-                for (File subFile : files) {
-                    deleteAllFiles(subFile);
-                }
+    private void checkoutCommitFiles(Commit currentCommit, Commit checkoutCommit, Index index){
+        Tree checkoutTree = checkoutCommit.getTree();
+        // <path, sha1 to write, or null to delete the file>
+        Map<String, String> changedFiles = new TreeMap<>();
+        Tree.diff(currentCommit.getTree(), checkoutTree, (path, fromSha1, toSha1) -> changedFiles.put(path, toSha1));
+        for (String file : index.getStagedFilesForAddition().keySet()) {
+            changedFiles.putIfAbsent(file, checkoutTree.getFileSha1(file));
+        }
+        for (String file : index.getStagedFilesForRemoval()) {
+            if (checkoutTree.containsFile(file)){
+                changedFiles.putIfAbsent(file, checkoutTree.getFileSha1(file));
+            }
+        }
+        // the other tracked files are the same in both commits, they are written if they changed in the working directory
+        Map<String, String> unchangedFiles = new HashMap<>();
+        for (Map.Entry<String, String> entry : currentCommit.getTreeFiles().entrySet()) {
+            if (!changedFiles.containsKey(entry.getKey())){
+                unchangedFiles.put(entry.getKey(), entry.getValue());
+            }
+        }
+        Map<String, String> workingSha1s = getWorkingFileSha1s(index, unchangedFiles.keySet());
+        for (Map.Entry<String, String> entry : unchangedFiles.entrySet()) {
+            if (!entry.getValue().equals(workingSha1s.get(entry.getKey()))){
+                changedFiles.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        // delete first, a deleted file may be in the way of a directory to write
+        for (Map.Entry<String, String> entry : changedFiles.entrySet()) {
+            if (entry.getValue() == null){
+                deleteWorkingFile(entry.getKey());
+            }
+        }
+        Map<String, String> filesToWrite = new HashMap<>();
+        for (Map.Entry<String, String> entry : changedFiles.entrySet()) {
+            if (entry.getValue() != null){
+                filesToWrite.put(entry.getKey(), entry.getValue());
             }
         }
-        file.delete();
+        copyBlobsToFiles(filesToWrite);
+        if (VERBOSE){
+            System.out.println("Updated " + changedFiles.size() + " files");
+        }
+    }
+
+    /**
+     * delete the working file, and its directories left empty
+     * @param file
+     */
+    private void deleteWorkingFile(String file){
+        File target = new File(file).getAbsoluteFile();
+        if (!target.delete()){
+            return;
+        }
+        File dir = target.getParentFile();
+        File cwd = CWD.getAbsoluteFile();
+        // a directory which is not empty is not deleted
+        while (dir != null && !dir.equals(cwd) && dir.delete()){
+            dir = dir.getParentFile();
+        }
     }
 
     /**
@@ -965,8 +1426,7 @@ public class Repository {
      * @return
      */
     private String getHead(){
-        String head = readContentsAsString(HEAD_FILE).replace("ref: refs/heads/", "");
-        return head;
+        return getRefs().getCurrentBranch();
     }
 
     /**
@@ -975,186 +1435,146 @@ public class Repository {
      * @return
      */
     private Commit getCommitbyAbbrID(String commitId){
-        Commit commit = null;
-        if (commitId.length() == 40){
-            commit = getCommitbyId(commitId);
-        }else{
-            File[] files = OBJECT_DIR.listFiles();
-            if (commitId.length() <= 2){
-                List<String> candidateDir = new ArrayList<>();
-                for (File f : files) {
-                    String fileName = f.getName();
-                    if (fileName.startsWith(commitId)){
-                        candidateDir.add(fileName);
-                    }
-                }
-                if (candidateDir.size() == 0){
-                    throw new GitletException(NO_COMMIT_WITH_THAT_ID_EXIST_MESSAGE);
-                }else if (candidateDir.size() == 1){
-                    String first2Id = candidateDir.get(0);
-                    File[] files1 = join(OBJECT_DIR, first2Id).listFiles();
-                    if (files1.length  > 1){
-                        throw new GitletException(ENTER_MORE_DIGITS_MESSAGE);
-                    }else if (files1.length  == 0){
-                        throw new GitletException(SOME_FILES_ARE_DELETED_ACCIDENTLY_MESSAGE);
-                    }else{
-                        File f = files1[0];
-                        commit = Utils.readObject(f, Commit.class);
-                    }
-                }else{
-                    throw new GitletException(NO_COMMIT_WITH_THAT_ID_EXIST_MESSAGE);
-                }
-            } else{
-                // commitId.length > 2
-                String firs2Id = commitId.substring(0, 2);
-                boolean found = false;
-                for (File f : files) {
-                    String fileName = f.getName();
-                    if (fileName.equals(firs2Id)){
-                        found = true;
-                        break;
-                    }
-                }
-                if (found == false){
-                    throw new GitletException(NO_COMMIT_WITH_THAT_ID_EXIST_MESSAGE);
-                }else{
-                    List<File> candidateCommits = new ArrayList<>();
-                    File[] files1 = join(OBJECT_DIR, firs2Id).listFiles();
-                    String last = commitId.substring(2);
-                    for (File file2 : files1) {
-                        String name = file2.getName();
-                        if (name.startsWith(last)){
-                            candidateCommits.add(file2);
-                        }
-                    }
-                    if (candidateCommits.size() == 0){
-                        throw new GitletException(NO_COMMIT_WITH_THAT_ID_EXIST_MESSAGE);
-                    }else if (candidateCommits.size() == 1){
-                        commit = Utils.readObject(candidateCommits.get(0), Commit.class);
-                    }else{
-                        throw new GitletException(ENTER_MORE_DIGITS_MESSAGE);
-                    }
-                }
-            }
+        // only the commits are candidates, a blob or a tree with the same prefix is not ambiguous
+        List<String> candidateCommits = ObjectStore.findByPrefix(commitId, ObjectStore.TYPE_COMMIT);
+        if (candidateCommits.size() == 0){
+            throw new GitletException(NO_COMMIT_WITH_THAT_ID_EXIST_MESSAGE);
+        }else if (candidateCommits.size() > 1){
+            throw new GitletException(ENTER_MORE_DIGITS_MESSAGE);
         }
-        return commit;
+        return getCommitbyId(candidateCommits.get(0));
     }
 
     private void checkFileConsistenceBetweenCommits(Commit currentCommit, Commit checkoutCommit){
-        List<String> uncheckedFiles = getUncheckedFiles(currentCommit);
+        List<String> uncheckedFiles = getUncheckedFiles(currentCommit, getIndex(), listAllFiles(CWD));
         for (String uncheckedFile : uncheckedFiles) {
             if (checkoutCommit.treeContainsFile(uncheckedFile)){
                 System.out.println(UNCHECKED_FILE_MESSAGE);
-                System.exit(0);
+                throw new ExitException();
             }
         }
     }
 
-    private void addCheckoutCommitFiles(Commit checkoutCommit){
-        for(Map.Entry<String, String> entry : checkoutCommit.getTreeFiles().entrySet()){
-            String file1 = entry.getKey();
-            String sha1 = entry.getValue();
-            byte[] fileContent = getBlobContentFromSha1(sha1);
-            Utils.writeContents(file1, fileContent);
-        }
-    }
-
     /**
      * get the branch head commit and do some basic check
      * @param branch
      * @return
      */
     private Commit getBranchCommit(String branch){
-        File file = join(BRANCH_HEAD_DIR, branch);
-        if (!file.exists()){
+        String commitID = getRefs().resolve(branch);
+        if (commitID == null){
             throw new GitletException(NO_SUCH_BRANCH_EXISTS_MESSAGE);
         }
-        String commitID = readContentsAsString(file);
         Commit commit = getCommitbyId(commitID);
         return commit;
     }
 
     /**
-     * get the parentCommits of this commit(including itself)
+     * get the split point for merge command: the latest common ancestor of the two commits,
+     * following the second parents of the merge commits too
+     *        A---B---C---D---E (head)
+     *             \     /
+     *              F---G---H (branch)
+     * return G (the first parents only lead to B)
      * @param headCommit
-     *        A---B---C---D---E
-     * return A---B---C---D---E
+     * @param branchCommit
      * @return
+     * @throws GitletException if the commits have no common ancestor
      */
-    private List<String> getParentCommits(Commit headCommit){
-        List<String> parentCommits = new ArrayList<>();
-        parentCommits.add(headCommit.getSha1());
-        while(headCommit.getParentCommitID() != null){
-            String parentCommit = headCommit.getParentCommitID().get(0);
-            parentCommits.add(parentCommit);
-            headCommit = getCommitbyId(parentCommit);
+    private String getSplitPoint(Commit headCommit, Commit branchCommit){
+        CommitGraph graph = getCommitGraph();
+        int splitPoint = graph.mergeBase(graph.position(headCommit.getSha1()), graph.position(branchCommit.getSha1()));
+        if (splitPoint == CommitGraph.NONE){
+            // the histories are unrelated, the initial commits of two repositories
+            throw new GitletException(NO_COMMON_ANCESTOR_MESSAGE);
         }
-        Collections.reverse(parentCommits);
-        return parentCommits;
+        return graph.getSha1(splitPoint);
+    }
+
+    private byte[] getBlobContentFromSha1(String sha1){
+        return ObjectStore.readBlob(sha1);
     }
 
     /**
-     * get the split point for merge command
-     * @param headCommit
-     * @param branchCommit
-     * @return
+     * write the blobs to the working files, several files at a time (see WorkingTree):
+     * the directories are created first, then the blobs are read and written by the workers
+     * @param filesToWrite <file, sha1>
      */
-    private String getSplitPoint(Commit headCommit, Commit branchCommit){
-        List<String> parentCommitsforHeadCommit = getParentCommits(headCommit);
-        List<String> parentCommitsforBranchCommit = getParentCommits(branchCommit);
-        String splitPoint = null;
-        int minSize = Math.min(parentCommitsforHeadCommit.size(), parentCommitsforBranchCommit.size());
-        for (int i = 0; i < minSize; i++) {
-            if (parentCommitsforHeadCommit.get(i).equals(parentCommitsforBranchCommit.get(i))){
-                splitPoint = parentCommitsforHeadCommit.get(i);
-            }else{
-                break;
+    private void copyBlobsToFiles(Map<String, String> filesToWrite){
+        makeParentDirs(filesToWrite.keySet());
+        WorkingTree.map(filesToWrite.keySet(), file -> {
+            ObjectStore.copyBlob(filesToWrite.get(file), new File(file));
+            return null;
+        });
+    }
+
+    /**
+     * create the missing parent directories of the files, before the workers write them
+     * @param files
+     */
+    private void makeParentDirs(Collection<String> files){
+        Set<File> parentDirs = new TreeSet<>();
+        for (String file : files) {
+            parentDirs.add(new File(file).getAbsoluteFile().getParentFile());
+        }
+        for (File parentDir : parentDirs) {
+            if (!parentDir.exists()){
+                parentDir.mkdirs();
             }
         }
-        return splitPoint;
     }
 
     /**
-     * if the file exists in the tree, return the content, else return null
-     * @param commitTree
+     * write one blob to its working file, for the checkout of a single file (see copyBlobsToFiles)
+     * @param sha1
      * @param file
-     * @return
      */
-    private String getContent(Map<String, String> commitTree, String file){
-        if (commitTree.containsKey(file)){
-            return commitTree.get(file);
-        }else{
-            return null;
+    private void copyBlobToFile(String sha1, String file){
+        File target = new File(file);
+        File parentDir = target.getAbsoluteFile().getParentFile();
+        if (!parentDir.exists()){
+            parentDir.mkdirs();
         }
+        ObjectStore.copyBlob(sha1, target);
     }
 
-    private byte[] getBlobContentFromSha1(String sha1){
-        Blob blob = readObject(join(OBJECT_DIR, sha1.substring(0, 2), sha1.substring(2)), Blob.class);
-        byte[] content = blob.getContent();
-        return content;
+    /**
+     * merge the changes of the head and of the branch to the file line by line (see LineMerge), only
+     * the lines changed by both are a conflict. A file deleted on a side, added on both, binary or
+     * very large is a conflict as a whole, streamed from the blobs: the lengths of the blobs are
+     * checked before they are read. It may run on several threads at once, for different files.
+     * @param file
+     * @param splitPointContentSha1 null if the file was added
+     * @param headContentSha1 null if the head deleted the file
+     * @param branchContentSha1 null if the branch deleted the file
+     * @return the sha1 of the merged file, or null if there is a conflict
+     */
+    private String mergeFile(String file, String splitPointContentSha1, String headContentSha1,
+                             String branchContentSha1){
+        if (splitPointContentSha1 == null || headContentSha1 == null || branchContentSha1 == null
+                || LineMerge.isTooLong(splitPointContentSha1) || LineMerge.isTooLong(headContentSha1)
+                || LineMerge.isTooLong(branchContentSha1)){
+            handleMergeConflict(file, headContentSha1, branchContentSha1);
+            return null;
+        }
+        byte[] splitPointContent = getBlobContentFromSha1(splitPointContentSha1);
+        byte[] headContent = getBlobContentFromSha1(headContentSha1);
+        byte[] branchContent = getBlobContentFromSha1(branchContentSha1);
+        if (!LineMerge.canMerge(splitPointContent, headContent, branchContent)){
+            handleMergeConflict(file, headContentSha1, branchContentSha1);
+            return null;
+        }
+        LineMerge.Result result = LineMerge.merge(splitPointContent, headContent, branchContent);
+        writeContents(file, result.content);
+        return result.conflicts > 0 ? null : Blob.hashContent(result.content);
     }
 
+    /**
+     * write the whole contents of the head and of the branch as one conflict,
+     * a deleted file (null) is an empty one
+     */
     private void handleMergeConflict(String file, String headContentSha1, String branchContentSha1){
-        try{
-            String head = "<<<<<<< HEAD\n";
-            byte[] headContent;
-            if (headContentSha1 == null){
-                headContent = "\n".getBytes("UTF-8");
-            }else{
-                headContent = getBlobContentFromSha1(headContentSha1);
-            }
-            String separateLine = "=======\n";
-            byte[] branchContent;
-            if (branchContentSha1 == null){
-                branchContent = "\n".getBytes("UTF-8");
-            }else{
-                branchContent = getBlobContentFromSha1(branchContentSha1);
-            }
-            String end = ">>>>>>>";
-            writeContents(file, head, headContent, separateLine, branchContent, end);
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
-        }
+        LineMerge.writeConflict(new File(file), headContentSha1, branchContentSha1);
     }
 
     /**
@@ -0,0 +1,328 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A file of fixed width records, looked up by the prefix of their bytes:
+ *   [magic "GREC"][version][record length: int][sorted count: int][sorted record]...[appended record]...
+ *
+ * The sorted records are memory mapped and searched by binary search. New records are
+ * appended unsorted after them, and scanned. When there are too many of them the file
+ * is compacted: all the records are sorted (the duplicates removed), written to a temporary
+ * file, synced and moved to the file atomically, and the directory synced.
+ */
+public class SortedRecordFile {
+    private static final byte[] MAGIC = "GREC".getBytes(StandardCharsets.US_ASCII);
+    private static final byte VERSION = 1;
+    private static final int HEADER_LENGTH = 13;
+    /** the appended records are compacted when there are more than this, and more than 1/64 of the sorted ones */
+    private static final int MIN_APPENDED = 256;
+
+    private final File file;
+    private final int recordLength;
+    private FileChannel channel;
+    private MappedByteBuffer sorted;
+    private int sortedCount;
+    /** the appended records, read when the file was opened or appended since */
+    private ByteBuffer appended;
+    private int appendedCount;
+    /** the identity (device and inode) of the file when it was loaded */
+    private Object fileKey;
+
+    private SortedRecordFile(File file, int recordLength) {
+        this.file = file;
+        this.recordLength = recordLength;
+    }
+
+    /**
+     * open the file, creating it (empty) if it does not exist
+     * @param file
+     * @param recordLength
+     * @return
+     */
+    public static SortedRecordFile open(File file, int recordLength) {
+        SortedRecordFile records = new SortedRecordFile(file, recordLength);
+        if (!file.exists()) {
+            records.write(new ArrayList<>());
+        }
+        records.load();
+        return records;
+    }
+
+    private void load() {
+        try {
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            fileKey = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            channel.read(header, 0);
+            if (header.position() < HEADER_LENGTH
+                    || !Arrays.equals(Arrays.copyOf(header.array(), MAGIC.length), MAGIC)
+                    || header.get(MAGIC.length) != VERSION || header.getInt(MAGIC.length + 1) != recordLength) {
+                throw new IllegalArgumentException("not a record file: " + file.getName());
+            }
+            sortedCount = header.getInt(MAGIC.length + 5);
+            long sortedEnd = HEADER_LENGTH + (long) sortedCount * recordLength;
+            sorted = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_LENGTH, (long) sortedCount * recordLength);
+            // a record not written completely (the command was interrupted) is dropped
+            appendedCount = (int) ((channel.size() - sortedEnd) / recordLength);
+            channel.truncate(sortedEnd + (long) appendedCount * recordLength);
+            appended = ByteBuffer.allocate(Math.max(appendedCount, 16) * recordLength);
+            channel.read(appended, sortedEnd);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    public int size() {
+        return sortedCount + appendedCount;
+    }
+
+    /**
+     * append a record, compacting the file if there are too many appended records
+     * @param record
+     */
+    public void append(byte[] record) {
+        append(List.of(record));
+    }
+
+    /**
+     * append the records with one write, compacting the file if there are too many appended records
+     * @param records
+     */
+    public void append(List<byte[]> records) {
+        ByteBuffer buffer = ByteBuffer.allocate(records.size() * recordLength);
+        for (byte[] record : records) {
+            buffer.put(record);
+        }
+        buffer.flip();
+        try {
+            long position = channel.size();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        if (appended.remaining() < buffer.limit()) {
+            ByteBuffer larger = ByteBuffer.allocate(
+                    Math.max(appended.capacity() * 2, appended.position() + buffer.limit()));
+            appended.flip();
+            appended = larger.put(appended);
+        }
+        buffer.rewind();
+        appended.put(buffer);
+        appendedCount += records.size();
+        if (appendedCount > Math.max(MIN_APPENDED, sortedCount / 64)) {
+            compact();
+        }
+    }
+
+    /**
+     * whether the file is still the one loaded, with the same records: another process may
+     * have appended records to it, or replaced it by compacting it
+     * @return
+     */
+    public boolean isCurrent() {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            return attrs.size() == HEADER_LENGTH + (long) size() * recordLength
+                    && (fileKey == null || fileKey.equals(attrs.fileKey()));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * replace the records
+     * @param records
+     */
+    public void replace(List<byte[]> records) {
+        close();
+        write(records);
+        load();
+    }
+
+    private void compact() {
+        List<byte[]> records = new ArrayList<>(size());
+        for (int i = 0; i < sortedCount; i++) {
+            records.add(get(sorted, i));
+        }
+        for (int i = 0; i < appendedCount; i++) {
+            records.add(get(appended, i));
+        }
+        replace(records);
+    }
+
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * sort the records, and write them with a temporary file
+     */
+    private void write(List<byte[]> records) {
+        records.sort(Arrays::compareUnsigned);
+        File tmpFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tmpFile);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(recordLength);
+            List<byte[]> unique = new ArrayList<>(records.size());
+            for (byte[] record : records) {
+                if (unique.isEmpty() || !Arrays.equals(unique.get(unique.size() - 1), record)) {
+                    unique.add(record);
+                }
+            }
+            out.writeInt(unique.size());
+            for (byte[] record : unique) {
+                out.write(record);
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        } catch (IOException e) {
+            tmpFile.delete();
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        try {
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            tmpFile.delete();
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        Utils.syncDirectory(file.getParentFile());
+    }
+
+    /**
+     * find the records starting with the prefix
+     * @param prefix the first bytes of the records
+     * @param lastMask the mask of the bits of the last byte of the prefix to compare
+     *                 (0xf0 to compare an odd number of hex digits), 0xff for all of them
+     * @return the records, sorted ones first
+     */
+    public List<byte[]> find(byte[] prefix, int lastMask) {
+        List<byte[]> result = new ArrayList<>();
+        find(prefix, lastMask, result::add);
+        return result;
+    }
+
+    /**
+     * visit the records starting with the prefix one at a time, without holding them:
+     * the sorted ones in their order, then the appended ones in the order they were appended
+     * @param prefix
+     * @param lastMask
+     * @param visitor
+     */
+    public void find(byte[] prefix, int lastMask, Consumer<byte[]> visitor) {
+        for (int i = lowerBound(prefix, lastMask); i < sortedCount && compare(sorted, i, prefix, lastMask) == 0; i++) {
+            visitor.accept(get(sorted, i));
+        }
+        for (int i = 0; i < appendedCount; i++) {
+            if (compare(appended, i, prefix, lastMask) == 0) {
+                visitor.accept(get(appended, i));
+            }
+        }
+    }
+
+    /**
+     * count the records starting with the prefix, by two binary searches in the sorted ones
+     * @param prefix
+     * @param lastMask
+     * @return
+     */
+    public int count(byte[] prefix, int lastMask) {
+        int low = lowerBound(prefix, lastMask);
+        // the first sorted record above the prefix
+        int high = sortedCount;
+        int start = low;
+        while (start < high) {
+            int mid = (start + high) >>> 1;
+            if (compare(sorted, mid, prefix, lastMask) <= 0) {
+                start = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int count = high - low;
+        for (int i = 0; i < appendedCount; i++) {
+            if (compare(appended, i, prefix, lastMask) == 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public boolean contains(byte[] record) {
+        int i = lowerBound(record, 0xff);
+        if (i < sortedCount && compare(sorted, i, record, 0xff) == 0) {
+            return true;
+        }
+        for (int j = 0; j < appendedCount; j++) {
+            if (compare(appended, j, record, 0xff) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the first sorted record which is not below the prefix
+     */
+    private int lowerBound(byte[] prefix, int lastMask) {
+        int low = 0;
+        int high = sortedCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compare(sorted, mid, prefix, lastMask) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private byte[] get(ByteBuffer buffer, int i) {
+        byte[] record = new byte[recordLength];
+        buffer.get(i * recordLength, record);
+        return record;
+    }
+
+    /**
+     * compare the prefix of the record i of the buffer to the prefix, only the bytes of the record
+     * are read: a prefix longer than the records is above the records it starts with
+     */
+    private int compare(ByteBuffer buffer, int i, byte[] prefix, int lastMask) {
+        int offset = i * recordLength;
+        int length = Math.min(prefix.length, recordLength);
+        for (int j = 0; j < length; j++) {
+            int mask = j == prefix.length - 1 ? lastMask : 0xff;
+            int order = Integer.compare(buffer.get(offset + j) & mask, prefix[j] & mask);
+            if (order != 0) {
+                return order;
+            }
+        }
+        return prefix.length > recordLength ? -1 : 0;
+    }
+}
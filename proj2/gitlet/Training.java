@@ -0,0 +1,141 @@
+package gitlet;
+
+import gitlet.exception.ExitException;
+import gitlet.exception.GitletException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Replays the commands of tester files (testing/samples/*.in) in a single JVM, to record
+ *  the classes the commands load in a class data sharing archive (make cds):
+ *      java -XX:ArchiveClassesAtExit=gitlet.jsa gitlet.Training FILE.in...
+ *  It must be run in an empty directory, which is emptied before each file. The output
+ *  of the commands is discarded and not checked, tester.py does that.
+ *
+ *  Only the lines running commands ("> ...") and writing or deleting files ("+ ...",
+ *  "- ...") are replayed, the files are copied from the src directory next to the
+ *  directory of the tester file.
+ */
+public class Training {
+
+    public static void main(String... args) throws IOException {
+        File dir = Repository.CWD;
+        String[] existing = dir.list();
+        if (existing == null || existing.length > 0) {
+            System.out.println("Training must be run in an empty directory");
+            return;
+        }
+        PrintStream systemOut = System.out;
+        PrintStream systemErr = System.err;
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+        int commands = 0;
+        try {
+            System.setOut(discard);
+            System.setErr(discard);
+            for (String testFile : args) {
+                clear(dir);
+                // the objects of the previous repository are not in this one
+                ObjectStore.clearCache();
+                commands += replay(new File(testFile));
+            }
+        } finally {
+            System.setOut(systemOut);
+            System.setErr(systemErr);
+            clear(dir);
+        }
+        System.out.println("Replayed " + commands + " commands of " + args.length + " files");
+    }
+
+    /**
+     * replay the commands of the tester file
+     * @return the number of commands
+     */
+    private static int replay(File testFile) throws IOException {
+        File srcDir = Utils.join(testFile.getAbsoluteFile().getParentFile().getParentFile(), "src");
+        int commands = 0;
+        for (String line : Files.readAllLines(testFile.toPath())) {
+            if (line.startsWith("> ")) {
+                run(split(line.substring(2)));
+                commands++;
+            } else if (line.startsWith("+ ")) {
+                String[] operands = split(line.substring(2));
+                File target = new File(Repository.CWD, operands[0]);
+                target.getAbsoluteFile().getParentFile().mkdirs();
+                Files.copy(new File(srcDir, operands[1]).toPath(), target.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            } else if (line.startsWith("- ")) {
+                new File(Repository.CWD, line.substring(2).trim()).delete();
+            }
+        }
+        return commands;
+    }
+
+    /**
+     * run the command like Main, with a new repository as each command is a new process
+     */
+    private static void run(String[] args) {
+        if (args.length == 0) {
+            return;
+        }
+        Repository repo = new Repository();
+        try {
+            Main.run(repo, args);
+        } catch (ExitException | GitletException e) {
+            // the command ended, or failed as the test expects
+        } finally {
+            repo.close();
+            ObjectStore.refresh();
+        }
+    }
+
+    /**
+     * split the arguments of a command, the arguments in double quotes may have spaces
+     */
+    private static String[] split(String command) {
+        List<String> args = new ArrayList<>();
+        StringBuilder arg = null;
+        boolean quoted = false;
+        for (char c : command.toCharArray()) {
+            if (c == '"') {
+                quoted = !quoted;
+                if (arg == null) {
+                    arg = new StringBuilder();
+                }
+            } else if (Character.isWhitespace(c) && !quoted) {
+                if (arg != null) {
+                    args.add(arg.toString());
+                    arg = null;
+                }
+            } else {
+                if (arg == null) {
+                    arg = new StringBuilder();
+                }
+                arg.append(c);
+            }
+        }
+        if (arg != null) {
+            args.add(arg.toString());
+        }
+        return args.toArray(new String[0]);
+    }
+
+    /**
+     * delete everything in the directory
+     */
+    private static void clear(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            clear(file);
+            file.delete();
+        }
+    }
+}
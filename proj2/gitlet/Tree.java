@@ -1,65 +1,451 @@
 package gitlet;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.Serializable;
-import java.sql.Array;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
 
 
+/**
+ * A tree is a directory: it maps the name of each file and subdirectory
+ * directly in it to the sha1 of a blob or of another tree, like the trees of git.
+ *
+ * Subtrees are read lazily and shared between the trees of successive commits:
+ * new Tree(parent) only copies the top-level entries, and changing a file
+ * copies the subtrees on its path (copy on write), so an unchanged subdirectory
+ * keeps its tree object and its sha1.
+ *
+ * A tree read from its object file only holds its own entries: its subtrees are
+ * read through ObjectStore.TREES on each access, so the weight of a cached tree
+ * is the number of its entries.
+ */
 public class Tree implements Persistable {
-    private static final long SerialVersionUID = 2L;
-    // <filePath, Sha1Hash>
+    /** pinned to the value of the trees written by Java serialization, so they can still be read */
+    private static final long serialVersionUID = 7023032863323396477L;
+    /** the sha1 of a tree without files, such a tree is never persisted */
+    public static final String EMPTY_TREE_SHA1 = "0".repeat(40);
+    /** the separator of the directories in a file path */
+    private static final char SEPARATOR = File.separatorChar;
+
+    /** only set in the flat trees written by Java serialization: <filePath, Sha1Hash> */
     private Map<String, String> files;
+    /** <name, entry> of the files and directories directly in this directory, sorted by name */
+    private transient TreeMap<String, Entry> entries;
+    /** the sha1 computed by getSha1(), reset when the tree changes */
+    private transient String sha1;
 
     public Tree(Tree tree) {
-        this.files = new HashMap<>(tree.files);
+        this.entries = new TreeMap<>();
+        for (Map.Entry<String, Entry> entry : tree.entries.entrySet()) {
+            // both trees now share the subtree, and have to copy it before changing it
+            Entry shared = entry.getValue().share();
+            entry.setValue(shared);
+            this.entries.put(entry.getKey(), shared);
+        }
+        this.sha1 = tree.sha1;
     }
 
 
     public Tree() {
-        this.files = new HashMap<>();
+        this.entries = new TreeMap<>();
+    }
+
+    /**
+     * build the tree of the flat <filePath, Sha1Hash> map
+     * @param files
+     * @return
+     */
+    private static Tree fromFiles(Map<String, String> files) {
+        Tree tree = new Tree();
+        for (Map.Entry<String, String> entry : files.entrySet()) {
+            tree.addFile(entry.getKey(), entry.getValue());
+        }
+        return tree;
+    }
+
+    /**
+     * a tree written by Java serialization is flat, convert it
+     */
+    private Object readResolve() {
+        return fromFiles(files == null ? new HashMap<>() : files);
     }
 
 
     public void addFile(String path, String hash){
-        files.put(path, hash);
+        int slash = path.indexOf(SEPARATOR);
+        if (slash < 0){
+            entries.put(path, Entry.blob(ObjectId.fromHex(hash)));
+        }else{
+            Tree subtree = ownSubtree(path.substring(0, slash));
+            subtree.addFile(path.substring(slash + 1), hash);
+        }
+        changed();
     }
 
     public void removeFile(String path){
-        files.remove(path);
+        int slash = path.indexOf(SEPARATOR);
+        if (slash < 0){
+            entries.remove(path);
+        }else{
+            String name = path.substring(0, slash);
+            Entry entry = entries.get(name);
+            if (entry == null || !entry.isTree){
+                return;
+            }
+            Tree subtree = ownSubtree(name);
+            subtree.removeFile(path.substring(slash + 1));
+            // directories without files are not kept
+            if (subtree.entries.isEmpty()){
+                entries.remove(name);
+            }
+        }
+        changed();
     }
 
+    /**
+     * get the subtree of the directory name that this tree may change,
+     * copying it first if it is shared with another tree
+     * @param name
+     * @return
+     */
+    private Tree ownSubtree(String name){
+        Entry entry = entries.get(name);
+        if (entry != null && entry.isTree && entry.owned){
+            return entry.subtree;
+        }
+        Tree subtree = entry != null && entry.isTree ? new Tree(entry.getSubtree()) : new Tree();
+        entries.put(name, Entry.ownedTree(subtree));
+        return subtree;
+    }
+
+    private void changed(){
+        sha1 = null;
+    }
+
+    /**
+     * get the <filePath, Sha1Hash> of all the files in this tree,
+     * reading all the subtrees; the map is built on each call and is not kept
+     * @return
+     */
     public Map<String, String> getFiles(){
-        return files;
+        Map<String, String> result = new HashMap<>();
+        collectFiles("", result);
+        return result;
+    }
+
+    private void collectFiles(String prefix, Map<String, String> result){
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            String path = prefix + entry.getKey();
+            if (entry.getValue().isTree){
+                entry.getValue().getSubtree().collectFiles(path + SEPARATOR, result);
+            }else{
+                result.put(path, entry.getValue().getSha1());
+            }
+        }
+    }
+
+    /**
+     * visit the <filePath, Sha1Hash> of the files in this tree, skipping the subtrees
+     * already visited (as part of another tree)
+     * @param visitedTrees the sha1s of the trees visited
+     * @param visitor
+     */
+    public void visitFiles(Set<String> visitedTrees, BiConsumer<String, String> visitor){
+        visitFiles("", visitedTrees, visitor);
+    }
+
+    private void visitFiles(String prefix, Set<String> visitedTrees, BiConsumer<String, String> visitor){
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            Entry value = entry.getValue();
+            String path = prefix + entry.getKey();
+            if (!value.isTree){
+                visitor.accept(path, value.getSha1());
+            }else if (visitedTrees.add(value.getSha1())){
+                value.getSubtree().visitFiles(path + SEPARATOR, visitedTrees, visitor);
+            }
+        }
+    }
+
+    /**
+     * visit the files that differ between two trees, directory by directory. The entries of the trees
+     * are merge-joined by name, and a subtree with the same sha1 in both is skipped without reading it
+     * @param from
+     * @param to
+     * @param visitor
+     */
+    public static void diff(Tree from, Tree to, DiffVisitor visitor){
+        diff("", from, to, visitor);
+    }
+
+    private static void diff(String prefix, Tree from, Tree to, DiffVisitor visitor){
+        Iterator<Map.Entry<String, Entry>> fromEntries = from.entries.entrySet().iterator();
+        Iterator<Map.Entry<String, Entry>> toEntries = to.entries.entrySet().iterator();
+        Map.Entry<String, Entry> a = fromEntries.hasNext() ? fromEntries.next() : null;
+        Map.Entry<String, Entry> b = toEntries.hasNext() ? toEntries.next() : null;
+        while (a != null || b != null){
+            int order = a == null ? 1 : b == null ? -1 : a.getKey().compareTo(b.getKey());
+            if (order < 0){
+                visitSide(prefix + a.getKey(), a.getValue(), true, visitor);
+            }else if (order > 0){
+                visitSide(prefix + b.getKey(), b.getValue(), false, visitor);
+            }else{
+                diffEntries(prefix + a.getKey(), a.getValue(), b.getValue(), visitor);
+            }
+            if (order <= 0){
+                a = fromEntries.hasNext() ? fromEntries.next() : null;
+            }
+            if (order >= 0){
+                b = toEntries.hasNext() ? toEntries.next() : null;
+            }
+        }
+    }
+
+    private static void diffEntries(String path, Entry from, Entry to, DiffVisitor visitor){
+        if (from.getId().equals(to.getId())){
+            return;
+        }
+        if (from.isTree && to.isTree){
+            diff(path + SEPARATOR, from.getSubtree(), to.getSubtree(), visitor);
+        }else if (!from.isTree && !to.isTree){
+            visitor.visit(path, from.getSha1(), to.getSha1());
+        }else{
+            // a file replaced by a directory, or the other way
+            visitSide(path, from, true, visitor);
+            visitSide(path, to, false, visitor);
+        }
+    }
+
+    /**
+     * visit the files of an entry only in the tree from (removed), or only in the tree to
+     */
+    private static void visitSide(String path, Entry entry, boolean removed, DiffVisitor visitor){
+        if (!entry.isTree){
+            visitor.visit(path, removed ? entry.getSha1() : null, removed ? null : entry.getSha1());
+            return;
+        }
+        for (Map.Entry<String, Entry> child : entry.getSubtree().entries.entrySet()) {
+            visitSide(path + SEPARATOR + child.getKey(), child.getValue(), removed, visitor);
+        }
+    }
+
+    /**
+     * gets the files that differ between two trees
+     */
+    public interface DiffVisitor {
+        /**
+         * @param path the path of the file
+         * @param fromSha1 the sha1 of the file in the tree from, null if it is only in the tree to
+         * @param toSha1 the sha1 of the file in the tree to, null if it is only in the tree from
+         */
+        void visit(String path, String fromSha1, String toSha1);
+    }
+
+    /**
+     * the number of files and directories directly in this directory
+     */
+    public int size(){
+        return entries.size();
     }
 
     public boolean containsFile(String path){
-        return files.containsKey(path);
+        return getFileSha1(path) != null;
     }
 
     public List<String> getFilesList(){
-        return new ArrayList<>(files.keySet());
+        return new ArrayList<>(getFiles().keySet());
     }
 
+    /**
+     * get the sha1 of the file, only reading the subtrees on its path
+     * @param path
+     * @return the sha1, or null if the file is not in this tree
+     */
     public String getFileSha1(String path){
-        return files.get(path);
+        int slash = path.indexOf(SEPARATOR);
+        Entry entry = entries.get(slash < 0 ? path : path.substring(0, slash));
+        if (entry == null){
+            return null;
+        }
+        if (slash < 0){
+            return entry.isTree ? null : entry.getSha1();
+        }
+        return entry.isTree ? entry.getSubtree().getFileSha1(path.substring(slash + 1)) : null;
+    }
+
+    /**
+     * the number of entries held in memory by this tree and the subtrees it holds,
+     * the weight of the tree in ObjectStore.TREES
+     */
+    long weight(){
+        long weight = 1 + entries.size();
+        for (Tree subtree : getLoadedSubtrees()) {
+            weight += subtree.weight();
+        }
+        return weight;
+    }
+
+    /**
+     * the subtrees held in memory: the ones changed or built in memory, which may not
+     * be persisted yet, and the ones shared with the tree they were copied from
+     * @return
+     */
+    List<Tree> getLoadedSubtrees(){
+        List<Tree> subtrees = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.isTree && entry.subtree != null){
+                subtrees.add(entry.subtree);
+            }
+        }
+        return subtrees;
     }
 
     @Override
     public String getSha1(){
-        if (files.isEmpty()){
-            return "0".repeat(40);
+        if (sha1 == null){
+            sha1 = computeSha1();
+        }
+        return sha1;
+    }
+
+    private String computeSha1(){
+        if (entries.isEmpty()){
+            return EMPTY_TREE_SHA1;
         }
 
-        StringBuffer sb = new StringBuffer();
-        for(Map.Entry<String, String> entry : files.entrySet()){
-            String path = entry.getKey();
-            String hash = entry.getValue();
-            sb.append("100644 blob ").append(hash).append("\0").append(path);
+        // only the subtrees that changed have to be hashed again
+        StringBuilder sb = new StringBuilder();
+        for(Map.Entry<String, Entry> entry : entries.entrySet()){
+            Entry value = entry.getValue();
+            sb.append(value.isTree ? "040000 tree " : "100644 blob ").append(value.getSha1())
+                    .append("\0").append(entry.getKey());
         }
         return Utils.sha1(sb.toString());
     }
+
+    @Override
+    public byte getType(){
+        return ObjectStore.TYPE_TREE;
+    }
+
+    /**
+     * [entry count][type][name length][name][sha1: 20 bytes]... sorted by name
+     * @param out
+     * @throws IOException
+     */
+    @Override
+    public void encode(DataOutputStream out) throws IOException {
+        out.writeInt(entries.size());
+        for(Map.Entry<String, Entry> entry : entries.entrySet()){
+            Entry value = entry.getValue();
+            byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            out.writeByte(value.isTree ? ObjectStore.TYPE_TREE : ObjectStore.TYPE_BLOB);
+            out.writeInt(name.length);
+            out.write(name);
+            value.getId().write(out);
+        }
+    }
+
+    /**
+     * read a tree from its payload
+     * @param sha1 the sha1 of the tree
+     * @param version the version of the object file, trees of version 1 are flat
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public static Tree decode(String sha1, int version, DataInputStream in) throws IOException {
+        if (version == 1){
+            return decodeFlat(in);
+        }
+        Tree tree = new Tree();
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            byte type = in.readByte();
+            byte[] name = new byte[in.readInt()];
+            in.readFully(name);
+            // the ids stay binary, their hexadecimal numerals are only made when they are asked for
+            ObjectId id = ObjectId.read(in);
+            tree.entries.put(new String(name, StandardCharsets.UTF_8),
+                    type == ObjectStore.TYPE_TREE ? Entry.tree(id) : Entry.blob(id));
+        }
+        tree.sha1 = sha1;
+        return tree;
+    }
+
+    private static Tree decodeFlat(DataInputStream in) throws IOException {
+        Map<String, String> files = new HashMap<>();
+        int size = in.readInt();
+        byte[] id = new byte[20];
+        for (int i = 0; i < size; i++) {
+            byte[] path = new byte[in.readInt()];
+            in.readFully(path);
+            in.readFully(id);
+            files.put(new String(path, StandardCharsets.UTF_8), Utils.toHexString(id));
+        }
+        return fromFiles(files);
+    }
+
+    /**
+     * a file (blob) or a directory (tree) in a tree
+     */
+    private static class Entry {
+        private final boolean isTree;
+        /** the sha1 of the blob or of the persisted subtree, null for a subtree being changed */
+        private final ObjectId id;
+        /** the subtree being changed or built in memory, null for a persisted subtree
+         *  which is read through ObjectStore.TREES on each access */
+        private Tree subtree;
+        /** whether the subtree belongs to the tree holding this entry, which may change it in place */
+        private final boolean owned;
+
+        private Entry(boolean isTree, ObjectId id, Tree subtree, boolean owned) {
+            this.isTree = isTree;
+            this.id = id;
+            this.subtree = subtree;
+            this.owned = owned;
+        }
+
+        static Entry blob(ObjectId id) {
+            return new Entry(false, id, null, false);
+        }
+
+        static Entry tree(ObjectId id) {
+            return new Entry(true, id, null, false);
+        }
+
+        static Entry ownedTree(Tree subtree) {
+            return new Entry(true, null, subtree, true);
+        }
+
+        /**
+         * the entry for a copy of the tree holding it, the subtree is then shared
+         */
+        Entry share() {
+            if (!owned) {
+                return this;
+            }
+            return new Entry(true, ObjectId.fromHex(subtree.getSha1()), subtree, false);
+        }
+
+        ObjectId getId() {
+            return id != null ? id : ObjectId.fromHex(subtree.getSha1());
+        }
+
+        String getSha1() {
+            return id != null ? id.toHex() : subtree.getSha1();
+        }
+
+        Tree getSubtree() {
+            return subtree != null ? subtree : ObjectStore.readTree(id.toHex());
+        }
+    }
 }
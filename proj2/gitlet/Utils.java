@@ -1,6 +1,8 @@
 package gitlet;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.charset.StandardCharsets;
@@ -30,30 +32,107 @@ class Utils {
 
     /* SHA-1 HASH VALUES. */
 
+    /** The SHA-1 digest of each thread for sha1(): MessageDigest.getInstance
+     *  looks the algorithm up in the security providers on every call. */
+    private static final ThreadLocal<MessageDigest> SHA1_DIGEST =
+            ThreadLocal.withInitial(Utils::newSha1Digest);
+    /** The one of each thread for sha1Digest(), a stream being hashed may
+     *  hash its pieces with sha1(). */
+    private static final ThreadLocal<MessageDigest> STREAM_SHA1_DIGEST =
+            ThreadLocal.withInitial(Utils::newSha1Digest);
+
     /** Returns the SHA-1 hash of the concatenation of VALS, which may
-     *  be any mixture of byte arrays and Strings. */
+     *  be any mixture of byte arrays, Strings and ByteBuffers (whose
+     *  remaining bytes are consumed). */
     static String sha1(Object... vals) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            for (Object val : vals) {
-                if (val instanceof byte[]) {
-                    md.update((byte[]) val);
-                } else if (val instanceof String) {
-                    md.update(((String) val).getBytes(StandardCharsets.UTF_8));
-                } else {
-                    throw new IllegalArgumentException("improper type to sha1");
-                }
-            }
-            Formatter result = new Formatter();
-            for (byte b : md.digest()) {
-                result.format("%02x", b);
+        return toHexString(sha1Bytes(vals));
+    }
+
+    /** Returns the 20 bytes of the SHA-1 hash of the concatenation of VALS,
+     *  like sha1(VALS). */
+    static byte[] sha1Bytes(Object... vals) {
+        MessageDigest md = SHA1_DIGEST.get();
+        md.reset();
+        for (Object val : vals) {
+            if (val instanceof byte[]) {
+                md.update((byte[]) val);
+            } else if (val instanceof String) {
+                md.update(((String) val).getBytes(StandardCharsets.UTF_8));
+            } else if (val instanceof ByteBuffer) {
+                md.update((ByteBuffer) val);
+            } else {
+                throw new IllegalArgumentException("improper type to sha1");
             }
-            return result.toString();
+        }
+        return md.digest();
+    }
+
+    /** Returns the SHA-1 MessageDigest of this thread, reset, for hashing a
+     *  stream piece by piece. It must be done (digest()) before it is asked
+     *  for again on the thread. */
+    static MessageDigest sha1Digest() {
+        MessageDigest md = STREAM_SHA1_DIGEST.get();
+        md.reset();
+        return md;
+    }
+
+    /** Returns a new SHA-1 MessageDigest. */
+    static MessageDigest newSha1Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
         } catch (NoSuchAlgorithmException excp) {
             throw new IllegalArgumentException("System does not support SHA-1");
         }
     }
 
+    /** The values of the hexadecimal digits, indexed by their char, -1
+     *  for the other chars. */
+    private static final byte[] HEX_VALUES = new byte[128];
+
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 16; i++) {
+            HEX_VALUES["0123456789abcdef".charAt(i)] = (byte) i;
+            HEX_VALUES["0123456789ABCDEF".charAt(i)] = (byte) i;
+        }
+    }
+
+    /** Returns the bytes denoted by the hexadecimal numeral HEX. */
+    static byte[] fromHexString(String hex) {
+        byte[] result = new byte[hex.length() / 2];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) ((hexValue(hex.charAt(2 * i)) << 4)
+                    | hexValue(hex.charAt(2 * i + 1)));
+        }
+        return result;
+    }
+
+    private static int hexValue(char c) {
+        int value = c < HEX_VALUES.length ? HEX_VALUES[c] : -1;
+        if (value < 0) {
+            throw new IllegalArgumentException("not a hexadecimal digit: " + c);
+        }
+        return value;
+    }
+
+    /** The hexadecimal digits, indexed by their value. */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /** Returns the lowercase hexadecimal digit of VALUE, from 0 to 15. */
+    static char hexDigit(int value) {
+        return HEX_DIGITS[value];
+    }
+
+    /** Returns the lowercase hexadecimal numeral of the bytes in DIGEST. */
+    static String toHexString(byte[] digest) {
+        char[] result = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            result[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+            result[2 * i + 1] = HEX_DIGITS[digest[i] & 0xf];
+        }
+        return new String(result);
+    }
+
     /** Returns the SHA-1 hash of the concatenation of the strings in
      *  VALS. */
     static String sha1(List<Objects> vals) {
@@ -181,6 +260,19 @@ class Utils {
         appendContents(file, content);
     }
 
+    /**
+     * sync the names of the files of the directory, where the file system allows it: a file
+     * moved into it is still there after a crash
+     * @param dir
+     */
+    static void syncDirectory(File dir) {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // a directory cannot be opened on some systems, the moves are atomic anyway
+        }
+    }
+
     /** Return an object of type T read from FILE, casting it to EXPECTEDCLASS.
      *  Throws IllegalArgumentException in case of problems. */
     static <T extends Serializable> T readObject(File file,
@@ -282,16 +374,17 @@ class Utils {
         System.out.println();
     }
 
+    /** the format of the commit dates, built once for all the commits of a log */
+    private static final DateTimeFormatter COMMIT_DATE_FORMATTER =
+            DateTimeFormatter.ofPattern("EEEE, MMMM d, yyyy, HH:mm:ss z");
+
     /**
      * convert LocalDateTime to commit Date
      */
     static String toCommitDate(LocalDateTime commitTime) {
         // Convert LocalDateTime to ZonedDateTime using the system's default timezone
         ZonedDateTime zdt = commitTime.atZone(ZoneId.systemDefault());
-
-        // Format the ZonedDateTime to a string
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("EEEE, MMMM d, yyyy, HH:mm:ss z");
-        return formatter.format(zdt);
+        return COMMIT_DATE_FORMATTER.format(zdt);
     }
 
     /**
@@ -313,28 +406,32 @@ class Utils {
         long unixTimestamp = Long.parseLong(unixTimestampStr);
         // Convert the Unix timestamp to a ZonedDateTime
         ZonedDateTime zdt = Instant.ofEpochSecond(unixTimestamp).atZone(ZoneId.systemDefault());
-
-        // Define the format of the date and time
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("EEEE, MMMM d, yyyy, HH:mm:ss z");
-
-        // Format the ZonedDateTime to a string and return it
-        return formatter.format(zdt);
+        return COMMIT_DATE_FORMATTER.format(zdt);
     }
 
     /**
-     * the log output format
+     * print a log entry, followed by an empty line
+     * @param out
      * @param commitId
      * @param time
      * @param commitMessage
      */
-    public static String formatCommit(String commitId, String time,String commitMessage) {
-        return String.format(
-                "===\n" +
-                "commit %s\n" +
-                "Date: %s\n" +
-                "%s\n",
-                commitId, time, commitMessage
-        );
+    static void printCommit(PrintStream out, String commitId, String time, String commitMessage) {
+        out.print("===\ncommit ");
+        out.print(commitId);
+        out.print("\nDate: ");
+        out.print(time);
+        out.print('\n');
+        out.print(commitMessage);
+        out.print("\n\n");
+    }
+
+    /**
+     * a stream buffering the output of a command printing many lines, flushed to System.out by
+     * flush(): System.out may flush every line
+     */
+    static PrintStream bufferedOut() {
+        return new PrintStream(new BufferedOutputStream(System.out, 1 << 16), false);
     }
 
     public static String getSha1(File file) {
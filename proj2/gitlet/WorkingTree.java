@@ -0,0 +1,180 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Function;
+
+/**
+ * Walks and hashes the working directory on a fork-join pool: a directory is listed by a task,
+ * which forks a task for each of its subdirectories, and the files are hashed by tasks splitting
+ * the list of files in halves. The number of threads is the gitlet.parallelism property,
+ * the number of processors by default (1 walks and hashes on the calling thread).
+ *
+ * The results do not depend on the order the tasks run in: the lists are sorted,
+ * and the maps are keyed by path.
+ */
+public class WorkingTree {
+    public static final int PARALLELISM = Math.max(1,
+            Integer.getInteger("gitlet.parallelism", Runtime.getRuntime().availableProcessors()));
+    /** the files of a hashing task are split in halves until there are at most this number */
+    private static final int FILES_PER_TASK = 16;
+
+    private static ForkJoinPool pool;
+
+    private WorkingTree() {
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(PARALLELISM);
+        }
+        return pool;
+    }
+
+    /**
+     * list the files under dir, excluding the .gitlet and gitlet directories
+     * @param dir a directory or a file
+     * @param relativePath the path of dir relative to CWD, "" for CWD
+     * @return the sorted paths of the files relative to CWD
+     */
+    public static List<String> listFiles(File dir, String relativePath) {
+        if (dir.isFile()) {
+            return new ArrayList<>(List.of(relativePath));
+        }
+        if (!dir.isDirectory() || isExcluded(dir.getName())) {
+            return new ArrayList<>();
+        }
+        // with a parallelism of 1 the tasks are computed on the calling thread, without a pool
+        ListTask task = new ListTask(dir.toPath(), prefix(relativePath));
+        List<String> files = PARALLELISM == 1 ? task.compute() : getPool().invoke(task);
+        Collections.sort(files);
+        return files;
+    }
+
+    private static boolean isExcluded(String name) {
+        return name.equals(".gitlet") || name.equals("gitlet");
+    }
+
+    private static String prefix(String relativePath) {
+        return relativePath.isEmpty() ? "" : relativePath + File.separator;
+    }
+
+    /**
+     * apply function to the files in parallel, such as hashing them or writing them
+     * @param files the paths of the files
+     * @param function the value for a path, or null to leave it out of the map
+     * @return <path, value>
+     */
+    public static <T> Map<String, T> map(Collection<String> files, Function<String, T> function) {
+        Map<String, T> result = new ConcurrentHashMap<>();
+        List<String> list = new ArrayList<>(files);
+        MapTask<T> task = new MapTask<>(list, 0, list.size(), function, result);
+        if (PARALLELISM == 1) {
+            task.compute();
+        } else {
+            getPool().invoke(task);
+        }
+        return result;
+    }
+
+    /**
+     * list the files of a directory, the files of its subdirectories are listed by forked tasks
+     */
+    private static class ListTask extends RecursiveTask<List<String>> {
+        private static final long serialVersionUID = 1L;
+        private final Path dir;
+        private final String prefix;
+
+        ListTask(Path dir, String prefix) {
+            this.dir = dir;
+            this.prefix = prefix;
+        }
+
+        @Override
+        protected List<String> compute() {
+            List<String> files = new ArrayList<>();
+            List<ListTask> subdirs = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    String name = entry.getFileName().toString();
+                    BasicFileAttributes attrs;
+                    try {
+                        // follow the links, like File.isDirectory() and File.isFile()
+                        attrs = Files.readAttributes(entry, BasicFileAttributes.class);
+                    } catch (IOException e) {
+                        continue;
+                    }
+                    if (attrs.isDirectory()) {
+                        if (!isExcluded(name)) {
+                            subdirs.add(new ListTask(entry, prefix + name + File.separator));
+                        }
+                    } else if (attrs.isRegularFile()) {
+                        files.add(prefix + name);
+                    }
+                }
+            } catch (IOException e) {
+                return files;
+            }
+            if (PARALLELISM == 1) {
+                for (ListTask subdir : subdirs) {
+                    files.addAll(subdir.compute());
+                }
+            } else {
+                invokeAll(subdirs);
+                for (ListTask subdir : subdirs) {
+                    files.addAll(subdir.join());
+                }
+            }
+            return files;
+        }
+    }
+
+    /**
+     * apply the function to the files from start to end, splitting them in halves
+     */
+    private static class MapTask<T> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final List<String> files;
+        private final int start;
+        private final int end;
+        private final Function<String, T> function;
+        private final Map<String, T> result;
+
+        MapTask(List<String> files, int start, int end, Function<String, T> function, Map<String, T> result) {
+            this.files = files;
+            this.start = start;
+            this.end = end;
+            this.function = function;
+            this.result = result;
+        }
+
+        @Override
+        protected void compute() {
+            if (PARALLELISM == 1 || end - start <= FILES_PER_TASK) {
+                for (int i = start; i < end; i++) {
+                    T value = function.apply(files.get(i));
+                    if (value != null) {
+                        result.put(files.get(i), value);
+                    }
+                }
+                return;
+            }
+            int middle = (start + end) >>> 1;
+            invokeAll(new MapTask<>(files, start, middle, function, result),
+                    new MapTask<>(files, middle, end, function, result));
+        }
+    }
+}
@@ -29,6 +29,11 @@ public class MessageConstant {
     public static final String GIVEN_BRANCH_IS_ANCESTOR_MESSAGE = "Given branch is an ancestor of the current branch.";
     public static final String BRANCH_FAST_FORWARDED_MESSAGE = "Current branch fast-forwarded.";
     public static final String MERFE_CONFLICT_MESSAGE = "Encountered a merge conflict";
+    public static final String NO_COMMON_ANCESTOR_MESSAGE = "The branches have no common ancestor";
+    public static final String DAEMON_ALREADY_RUNNING_MESSAGE = "A daemon is already running for this repository";
+    public static final String NO_DAEMON_RUNNING_MESSAGE = "No daemon is running for this repository";
+    public static final String DAEMON_STOPPED_MESSAGE = "The daemon stopped while running the command";
+    public static final String PATHSPEC_DID_NOT_MATCH_MESSAGE = "pathspec '%s' did not match any files";
 
 
 
@@ -0,0 +1,14 @@
+package gitlet.exception;
+
+/** Ends a command after it printed its message, like System.exit(0) but
+ *  without stopping a daemon (see gitlet.Daemon) running the command.
+ */
+public class ExitException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    /** An ExitException, it has no message. */
+    public ExitException() {
+        super(null, null, false, false);
+    }
+
+}
@@ -5,6 +5,7 @@ package gitlet.exception;
  *  @author P. N. Hilfinger
  */
 public class GitletException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
 
 
     /** A GitletException with no message. */